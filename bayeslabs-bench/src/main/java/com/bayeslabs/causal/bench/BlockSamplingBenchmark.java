@@ -0,0 +1,62 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+import com.bayeslabs.causal.sampling.Prediction;
+
+/**
+ * Prediction sampling one particle at a time against blocks of 64 particles per node, with the scalar
+ * block kernel.  VectorBlockSamplingBenchmark runs the same with the SIMD kernel of bayeslabs-vector.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockSamplingBenchmark {
+
+	@Param({"200"})
+	public int events;
+
+	@Param({"10000", "100000"})
+	public int particles;
+
+	@Param({"10"})
+	public int steps;
+
+	@Param({"false", "true"})
+	public boolean blocks;
+
+	private Node[] nodes;
+
+	@Setup
+	public void setup()
+	{
+		Plan plan = RandomPlans.generate(events, 2.0, 6, 50, 42L);
+		nodes = plan.buildDBN(steps);
+	}
+
+	@Benchmark
+	public Node[] prediction()
+	{
+		Prediction prediction = new Prediction(nodes, particles);
+		prediction.setBlockSampling(blocks);
+		prediction.run();
+		return nodes;
+	}
+}
@@ -0,0 +1,72 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+import com.bayeslabs.causal.sampling.ParticleFilter;
+
+/**
+ * Correcting one observation of a long filtered horizon: every invocation flips an observation
+ * ago steps before the end and brings the marginals up to date.  Without checkpoints (interval 0) that
+ * filters the whole horizon again, with them only the steps after the last checkpoint before the edit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorrectionBenchmark {
+
+	@Param({"50"})
+	public int events;
+
+	@Param({"1000"})
+	public int particles;
+
+	@Param({"1000"})
+	public int steps;
+
+	@Param({"0", "10", "50"})
+	public int interval;
+
+	@Param({"1", "100"})
+	public int ago;
+
+	private ParticleFilter filter;
+	private int event;
+	private boolean observed;
+
+	@Setup
+	public void setup()
+	{
+		Plan plan = RandomPlans.generate(events, 2.0, 4, 10, 42L);
+		RandomPlans.addEvidence(plan, 0.01, steps, 43L);
+		Node[] nodes = plan.buildDBN(steps);
+		filter = new ParticleFilter(nodes, particles, 1, 42L);
+		filter.setCheckpointInterval(interval);
+		filter.run();
+		event = nodes[nodes.length - 1].getId();
+	}
+
+	@Benchmark
+	public int correct()
+	{
+		observed = !observed;
+		filter.observe(event, steps - ago, observed ? 1f : 0f);
+		return filter.update();
+	}
+}
@@ -0,0 +1,67 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.CPTCompiler;
+import com.bayeslabs.causal.model.Event;
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * CPT construction cost by number of causes: Event.priviewCPT and the Node constructor, both through
+ * CPTCompiler.  Without cached the compiler's cache is cleared before every call, so the table is
+ * computed each time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CptBenchmark {
+
+	@Param({"4", "8", "12", "16", "20"})
+	public int causes;
+
+	@Param({"false", "true"})
+	public boolean cached;
+
+	private Event event;
+	private int[] topocauses;
+
+	@Setup
+	public void setup()
+	{
+		event = RandomPlans.wideEvent(causes, 42L);
+		topocauses = new int[causes];
+		for(int c = 0; c < causes; c++)
+		{
+			topocauses[c] = c;
+		}
+	}
+
+	@Benchmark
+	public float[] priviewCPT()
+	{
+		if(!cached) CPTCompiler.clear();
+		return event.priviewCPT();
+	}
+
+	@Benchmark
+	public Node buildCPT()
+	{
+		if(!cached) CPTCompiler.clear();
+		return new Node(event, topocauses, 1);
+	}
+}
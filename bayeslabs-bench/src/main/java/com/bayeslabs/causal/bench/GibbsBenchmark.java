@@ -0,0 +1,98 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+import com.bayeslabs.causal.sampling.GibbsSampler;
+
+/**
+ * Gibbs sampling of a plan whose leaves are all observed true at the last time step (diagnostic
+ * evidence).  The smallest effective sample size and the largest R-hat of the last invocation are
+ * printed after each iteration, next to the time per run that JMH reports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GibbsBenchmark {
+
+	@Param({"100"})
+	public int events;
+
+	@Param({"10"})
+	public int steps;
+
+	@Param({"1000", "10000"})
+	public int samples;
+
+	@Param({"1", "4"})
+	public int chains;
+
+	private Node[] nodes;
+	private GibbsSampler last;
+
+	@Setup
+	public void setup()
+	{
+		Plan plan = RandomPlans.generate(events, 2.0, 6, 20, 42L);
+		nodes = plan.buildDBN(steps);
+		boolean[] cause = new boolean[nodes.length];
+		for(Node node : nodes)
+		{
+			for(int c : node.getCauses())
+			{
+				cause[c] = true;
+			}
+		}
+		for(int n = 0; n < nodes.length; n++)
+		{
+			if(!cause[n] && !nodes[n].isRoot()) plan.getEvent(nodes[n].getId()).addObservation(steps, 1.0f);
+		}
+		nodes = plan.buildDBN(steps);
+	}
+
+	@Benchmark
+	public Node[] gibbs()
+	{
+		GibbsSampler sampler = new GibbsSampler(nodes, samples);
+		sampler.setChains(chains);
+		sampler.setSeed(42L);
+		sampler.run();
+		last = sampler;
+		return nodes;
+	}
+
+	@TearDown(Level.Iteration)
+	public void report()
+	{
+		if(last == null) return;
+		float smallest = Float.POSITIVE_INFINITY;
+		float largest = 0f;
+		for(int n = 0; n < nodes.length; n++)
+		{
+			for(int t = 0; t < nodes[n].getSteps(); t++)
+			{
+				smallest = Math.min(smallest, last.getEffectiveSampleSizes()[n][t]);
+				if(!Float.isNaN(last.getRHat()[n][t])) largest = Math.max(largest, last.getRHat()[n][t]);
+			}
+		}
+		System.out.printf("min ess %.0f, max r-hat %.4f%n", smallest, largest);
+	}
+}
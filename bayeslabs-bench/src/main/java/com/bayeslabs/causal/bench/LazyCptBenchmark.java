@@ -0,0 +1,65 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Event;
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Cost of one uncached lookup in the lazy CPT of a wide node by number of active causes.  Every
+ * invocation builds the node again, so its cache is empty; the cost should grow as 2^active * active and
+ * not with the in-degree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyCptBenchmark {
+
+	@Param({"40"})
+	public int causes;
+
+	@Param({"4", "8", "12", "16", "20"})
+	public int active;
+
+	private Event event;
+	private int[] topocauses;
+	private long index;
+
+	@Setup
+	public void setup()
+	{
+		event = RandomPlans.wideEvent(causes, 42L);
+		topocauses = new int[causes];
+		for(int c = 0; c < causes; c++)
+		{
+			topocauses[c] = c;
+		}
+		// every other cause from the top, so the active causes are spread over the index
+		for(int a = 0; a < active; a++)
+		{
+			index |= 1L << (causes - 1 - 2 * a % causes);
+		}
+	}
+
+	@Benchmark
+	public float lookup()
+	{
+		Node node = new Node(event, topocauses, 1);
+		return node.getConditional(index);
+	}
+}
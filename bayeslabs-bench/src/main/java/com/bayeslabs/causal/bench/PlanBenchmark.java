@@ -0,0 +1,111 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+import com.bayeslabs.causal.model.PlanBuilder;
+
+/**
+ * Topological sort, DBN construction and plan loading (link by link against PlanBuilder) on random plans.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlanBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public int events;
+
+	@Param({"2.0"})
+	public double meancauses;
+
+	@Param({"6"})
+	public int maxcauses;
+
+	@Param({"100"})
+	public int window;
+
+	@Param({"10"})
+	public int steps;
+
+	private Plan plan;
+	private int[] from;
+	private int[] to;
+
+	@Setup
+	public void setup()
+	{
+		plan = RandomPlans.generate(events, meancauses, maxcauses, window, 42L);
+		int links = 0;
+		for(int id = 1; id <= events; id++)
+		{
+			links += plan.getEvent(id).getCauses().size();
+		}
+		from = new int[links];
+		to = new int[links];
+		int l = 0;
+		for(int id = 1; id <= events; id++)
+		{
+			for(int cause : plan.getEvent(id).getCauses())
+			{
+				from[l] = cause;
+				to[l++] = id;
+			}
+		}
+	}
+
+	@Benchmark
+	public Plan addLinks()
+	{
+		Plan loaded = new Plan("loaded");
+		for(int id = 1; id <= events; id++)
+		{
+			loaded.addEvent("e"+id, id);
+		}
+		for(int l = 0; l < from.length; l++)
+		{
+			loaded.addLink(from[l], to[l]);
+		}
+		return loaded;
+	}
+
+	@Benchmark
+	public Plan planBuilder()
+	{
+		PlanBuilder builder = new PlanBuilder("loaded");
+		for(int id = 1; id <= events; id++)
+		{
+			builder.addEvent(id, "e"+id);
+		}
+		return builder.addLinks(from, to).build();
+	}
+
+	@Benchmark
+	public HashMap<Integer, Integer> indexedTopoTree()
+	{
+		return plan.indexedTopoTree();
+	}
+
+	@Benchmark
+	public Node[] buildDBN()
+	{
+		return plan.buildDBN(steps);
+	}
+}
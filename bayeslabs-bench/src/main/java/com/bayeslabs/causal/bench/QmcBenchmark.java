@@ -0,0 +1,116 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+import com.bayeslabs.causal.sampling.ExactInference;
+import com.bayeslabs.causal.sampling.ParticleFilter;
+import com.bayeslabs.causal.sampling.Philox;
+import com.bayeslabs.causal.sampling.Prediction;
+import com.bayeslabs.causal.sampling.RandomSource;
+import com.bayeslabs.causal.sampling.ScrambledHalton;
+
+/**
+ * Error per millisecond of pseudo-random (Philox) against scrambled Halton particles, each with the
+ * sampled and the Rao-Blackwellised estimator.  The plan is small
+ * enough for ExactInference, whose marginals are the ground truth; every invocation draws with a new
+ * seed and the root mean square error over all marginals of an iteration's invocations is printed after
+ * the iteration, next to the time per run that JMH reports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QmcBenchmark {
+
+	@Param({"30"})
+	public int events;
+
+	@Param({"1000", "4000", "16000", "64000"})
+	public int particles;
+
+	@Param({"5"})
+	public int steps;
+
+	@Param({"philox", "halton"})
+	public String rng;
+
+	@Param({"false", "true"})
+	public boolean filter;
+
+	@Param({"false", "true"})
+	public boolean raoblackwell;
+
+	private Node[] nodes;
+	private float[][] exact;
+	private long seed;
+	private double squares;
+	private long count;
+
+	@Setup
+	public void setup()
+	{
+		Plan plan = RandomPlans.generate(events, 2.0, 4, 10, 42L);
+		nodes = plan.buildDBN(steps);
+		new ExactInference(nodes).run();
+		exact = new float[nodes.length][];
+		for(int n = 0; n < nodes.length; n++)
+		{
+			exact[n] = nodes[n].getMarginal().clone();
+		}
+	}
+
+	@Benchmark
+	public Node[] run()
+	{
+		RandomSource random = "halton".equals(rng) ? new ScrambledHalton(seed++) : new Philox(seed++);
+		if(filter)
+		{
+			ParticleFilter sampler = new ParticleFilter(nodes, particles);
+			sampler.setRandom(random);
+			sampler.setRaoBlackwell(raoblackwell);
+			sampler.run();
+		}else{
+			Prediction sampler = new Prediction(nodes, particles);
+			sampler.setRandom(random);
+			sampler.setRaoBlackwell(raoblackwell);
+			sampler.run();
+		}
+		double error;
+		for(int n = 0; n < nodes.length; n++)
+		{
+			for(int t = 0; t < steps; t++)
+			{
+				error = nodes[n].getMarginal(t) - exact[n][t];
+				squares += error * error;
+				count++;
+			}
+		}
+		return nodes;
+	}
+
+	@TearDown(Level.Iteration)
+	public void report()
+	{
+		if(count > 0) System.out.printf("rmse %.6f over %d marginals%n", Math.sqrt(squares / count), count);
+		squares = 0;
+		count = 0;
+	}
+}
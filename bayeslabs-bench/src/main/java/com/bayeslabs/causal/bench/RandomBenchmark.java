@@ -0,0 +1,98 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+import com.bayeslabs.causal.sampling.Philox;
+import com.bayeslabs.causal.sampling.Prediction;
+import com.bayeslabs.causal.sampling.RandomSource;
+import com.bayeslabs.causal.sampling.SplitRandom;
+import com.bayeslabs.causal.sampling.Xoroshiro128;
+
+/**
+ * The generators behind RandomSource against java.util.Random: raw bulk fills and a whole Prediction
+ * run.  "random" fills with Random.nextFloat(); it is not a RandomSource, so its Prediction runs on the
+ * default SplitRandom.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RandomBenchmark {
+
+	@Param({"random", "split", "xoroshiro", "philox"})
+	public String rng;
+
+	@Param({"200"})
+	public int events;
+
+	@Param({"10000"})
+	public int particles;
+
+	@Param({"10"})
+	public int steps;
+
+	private Random random;
+	private RandomSource source;
+	private float[] buffer;
+	private Node[] nodes;
+
+	@Setup
+	public void setup()
+	{
+		if("split".equals(rng))
+		{
+			source = new SplitRandom(42L);
+		}else if("xoroshiro".equals(rng))
+		{
+			source = new Xoroshiro128(42L);
+		}else if("philox".equals(rng))
+		{
+			source = new Philox(42L);
+		}
+		random = (source != null) ? source : new Random(42L);
+		buffer = new float[1 << 16];
+		Plan plan = RandomPlans.generate(events, 2.0, 6, 50, 42L);
+		nodes = plan.buildDBN(steps);
+	}
+
+	@Benchmark
+	public float[] fill()
+	{
+		if(source != null)
+		{
+			source.fill(buffer);
+		}else{
+			for(int i = 0; i < buffer.length; i++)
+			{
+				buffer[i] = random.nextFloat();
+			}
+		}
+		return buffer;
+	}
+
+	@Benchmark
+	public Node[] prediction()
+	{
+		Prediction prediction = new Prediction(nodes, particles);
+		prediction.setRandom(source);
+		prediction.run();
+		return nodes;
+	}
+}
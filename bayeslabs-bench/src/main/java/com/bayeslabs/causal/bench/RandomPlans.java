@@ -0,0 +1,131 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.Random;
+
+import com.bayeslabs.causal.model.Event;
+import com.bayeslabs.causal.model.Plan;
+
+/**
+ * Seeded generators of synthetic plans, so that benchmark numbers can be reproduced from the
+ * parameters alone.
+ */
+public final class RandomPlans {
+
+	private RandomPlans()
+	{
+	}
+
+	/**
+	 * Generates a random DAG.  Events are numbered 1..events and every event draws its causes from the
+	 * window events created right before it, so the plan is acyclic by construction and the cause count
+	 * follows a Poisson distribution clamped to maxcauses.
+	 * @param events number of events
+	 * @param meancauses mean in-degree
+	 * @param maxcauses largest in-degree
+	 * @param window how far back causes are drawn from, 0 for the whole prefix
+	 * @param seed random seed
+	 * @return plan with random elicitations, leaks and continuations
+	 */
+	public static Plan generate(int events, double meancauses, int maxcauses, int window, long seed)
+	{
+		Random R = new Random(seed);
+		Plan plan = new Plan("random-"+events+"-"+seed);
+		for(int id = 1; id <= events; id++)
+		{
+			plan.addEvent("e"+id, id);
+		}
+		int[] causes = new int[maxcauses];
+		for(int id = 1; id <= events; id++)
+		{
+			int lowest = (window > 0) ? Math.max(1, id - window) : 1;
+			int k = Math.min(Math.min(poisson(R, meancauses), maxcauses), id - lowest);
+			for(int c = 0; c < k; c++)
+			{
+				int cause;
+				do{
+					cause = lowest + R.nextInt(id - lowest);
+				}while(contains(causes, c, cause));
+				causes[c] = cause;
+				plan.addLink(cause, id);
+			}
+			// the first cause added is the high order bit
+			for(int c = 0; c < k; c++)
+			{
+				plan.setElicitation(id, 1 << (k - 1 - c), 0.1f + 0.8f * R.nextFloat());
+			}
+			Event e = plan.getEvent(id);
+			if(k == 0)
+			{
+				e.setLeak(0.05f + 0.45f * R.nextFloat());
+				e.setContinuation(0.5f + 0.5f * R.nextFloat());
+			}else{
+				e.setLeak(0.05f * R.nextFloat());
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Creates a single event with the given number of causes, random singleton elicitations, a few pair
+	 * elicitations and a leak, which exercises every branch of the CPT construction.
+	 */
+	public static Event wideEvent(int causes, long seed)
+	{
+		Random R = new Random(seed);
+		Event e = new Event(0, "wide");
+		for(int c = 1; c <= causes; c++)
+		{
+			e.addCause(c);
+		}
+		for(int bit = 0; bit < causes; bit++)
+		{
+			e.addElicittion(1 << bit, 0.1f + 0.8f * R.nextFloat());
+		}
+		for(int bit = 1; bit < causes; bit += 2)
+		{
+			e.addElicittion((1 << bit) | (1 << (bit - 1)), 0.5f + 0.4f * R.nextFloat());
+		}
+		e.setLeak(0.1f);
+		return e;
+	}
+
+	/**
+	 * Observes each event at each time 0..steps with probability density, as true or false with equal odds.
+	 */
+	public static void addEvidence(Plan plan, double density, int steps, long seed)
+	{
+		Random R = new Random(seed);
+		for(Event e : plan.getEvents().values())
+		{
+			for(int time = 0; time <= steps; time++)
+			{
+				if(R.nextDouble() < density)
+				{
+					e.addObservation(time, R.nextBoolean() ? 1.0f : 0.0f);
+				}
+			}
+		}
+	}
+
+	private static int poisson(Random R, double mean)
+	{
+		double limit = Math.exp(-mean);
+		double product = R.nextDouble();
+		int k = 0;
+		while(product > limit)
+		{
+			product *= R.nextDouble();
+			k++;
+		}
+		return k;
+	}
+
+	private static boolean contains(int[] values, int length, int value)
+	{
+		for(int i = 0; i < length; i++)
+		{
+			if(values[i] == value) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,69 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+import com.bayeslabs.causal.sampling.ParticleFilter;
+import com.bayeslabs.causal.sampling.Prediction;
+
+/**
+ * Full sampler runs by particle count, horizon and evidence density (the fraction of (event, time)
+ * pairs that carry an observation).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SamplerBenchmark {
+
+	@Param({"200"})
+	public int events;
+
+	@Param({"1000", "10000", "100000"})
+	public int particles;
+
+	@Param({"1", "10", "50"})
+	public int steps;
+
+	@Param({"0.0", "0.01", "0.1"})
+	public double evidence;
+
+	private Node[] nodes;
+
+	@Setup
+	public void setup()
+	{
+		Plan plan = RandomPlans.generate(events, 2.0, 6, 50, 42L);
+		RandomPlans.addEvidence(plan, evidence, steps, 43L);
+		nodes = plan.buildDBN(steps);
+	}
+
+	@Benchmark
+	public Node[] particleFilter()
+	{
+		new ParticleFilter(nodes, particles, 1, 42L).run();
+		return nodes;
+	}
+
+	@Benchmark
+	public Node[] prediction()
+	{
+		new Prediction(nodes, particles).run();
+		return nodes;
+	}
+}
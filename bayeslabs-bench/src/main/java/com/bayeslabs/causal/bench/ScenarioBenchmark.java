@@ -0,0 +1,110 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Event;
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+import com.bayeslabs.causal.sampling.ParticleFilter;
+import com.bayeslabs.causal.sampling.ScenarioBatch;
+
+/**
+ * A batch of what-if scenarios, each observing one more event at one time step: one Plan.buildDBN and
+ * ParticleFilter per scenario (separate) against one ScenarioBatch over a single compiled network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScenarioBenchmark {
+
+	@Param({"200"})
+	public int events;
+
+	@Param({"1000"})
+	public int particles;
+
+	@Param({"10"})
+	public int steps;
+
+	@Param({"100"})
+	public int scenarios;
+
+	private Plan plan;
+	private Node[] nodes;
+	private int[] ids;
+	private int[] times;
+	private float[] values;
+
+	@Setup
+	public void setup()
+	{
+		plan = RandomPlans.generate(events, 2.0, 6, 50, 42L);
+		RandomPlans.addEvidence(plan, 0.01, steps, 43L);
+		nodes = plan.buildDBN(steps);
+		Integer[] keys = plan.getEvents().keySet().toArray(new Integer[0]);
+		ids = new int[scenarios];
+		times = new int[scenarios];
+		values = new float[scenarios];
+		for(int s = 0; s < scenarios; s++)
+		{
+			ids[s] = keys[(s * 7919) % keys.length];
+			times[s] = 1 + s % steps;
+			values[s] = s % 2;
+		}
+	}
+
+	@Benchmark
+	public float separate()
+	{
+		float sum = 0f;
+		for(int s = 0; s < scenarios; s++)
+		{
+			Event event = plan.getEvent(ids[s]);
+			Float previous = event.getObservations().get(times[s]);
+			event.addObservation(times[s], values[s]);
+			Node[] scenario = plan.buildDBN(steps);
+			new ParticleFilter(scenario, particles, 1, 42L).run();
+			sum += scenario[scenario.length - 1].getMarginal(steps);
+			if(previous != null)
+			{
+				event.addObservation(times[s], previous);
+			}else{
+				event.getObservations().remove(times[s]);
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public float batch()
+	{
+		ScenarioBatch batch = new ScenarioBatch(nodes, particles);
+		batch.setSeed(42L);
+		for(int s = 0; s < scenarios; s++)
+		{
+			batch.addScenario(new int[]{ids[s]}, new int[]{times[s]}, new float[]{values[s]});
+		}
+		batch.run();
+		float sum = 0f;
+		for(int s = 0; s < scenarios; s++)
+		{
+			sum += batch.getMarginals(s)[nodes.length - 1][steps];
+		}
+		return sum;
+	}
+}
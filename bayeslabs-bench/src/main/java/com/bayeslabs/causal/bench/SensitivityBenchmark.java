@@ -0,0 +1,105 @@
+package com.bayeslabs.causal.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bayeslabs.causal.model.Event;
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+import com.bayeslabs.causal.sampling.ParticleFilter;
+import com.bayeslabs.causal.sampling.Philox;
+import com.bayeslabs.causal.sampling.Sensitivity;
+
+/**
+ * Derivatives of one target marginal with respect to every elicitation: Sensitivity against perturbing
+ * each elicitation in the plan, rebuilding the DBN and filtering it twice (rebuild).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class SensitivityBenchmark {
+
+	private static final float STEP = 0.01f;
+
+	@Param({"100"})
+	public int events;
+
+	@Param({"2000"})
+	public int particles;
+
+	@Param({"5"})
+	public int steps;
+
+	private Plan plan;
+	private Node[] nodes;
+	private int target;
+
+	@Setup
+	public void setup()
+	{
+		plan = RandomPlans.generate(events, 2.0, 4, 10, 42L);
+		RandomPlans.addEvidence(plan, 0.01, steps, 43L);
+		nodes = plan.buildDBN(steps);
+		target = nodes[nodes.length / 2].getId();
+	}
+
+	@Benchmark
+	public float sensitivity()
+	{
+		Sensitivity sensitivity = new Sensitivity(plan, nodes, particles, target);
+		sensitivity.setSeed(42L);
+		sensitivity.setStep(STEP);
+		sensitivity.run();
+		return sensitivity.getRanking().isEmpty() ? 0f : sensitivity.getRanking().get(0).getMagnitude();
+	}
+
+	@Benchmark
+	public float rebuild()
+	{
+		float largest = 0f;
+		for(Event event : plan.getEvents().values())
+		{
+			Map<Integer,Float> elicited = event.getElicited();
+			Integer[] indices = elicited.keySet().toArray(new Integer[0]);
+			for(int index : indices)
+			{
+				float value = elicited.get(index);
+				float upper = Math.min(1f, value + STEP);
+				float lower = Math.max(0f, value - STEP);
+				float difference = this.target(event, index, upper) - this.target(event, index, lower);
+				event.addElicittion(index, value);
+				largest = Math.max(largest, Math.abs(difference / (upper - lower)));
+			}
+		}
+		return largest;
+	}
+
+	private float target(Event event, int index, float value)
+	{
+		event.addElicittion(index, value);
+		Node[] rebuilt = plan.buildDBN(steps);
+		ParticleFilter filter = new ParticleFilter(rebuilt, particles);
+		filter.setRandom(new Philox(42L));
+		filter.run();
+		for(Node node : rebuilt)
+		{
+			if(node.getId() == target) return node.getMarginal(steps);
+		}
+		return Float.NaN;
+	}
+}
@@ -0,0 +1,12 @@
+package com.bayeslabs.causal.bench;
+
+import org.openjdk.jmh.annotations.Fork;
+
+/**
+ * BlockSamplingBenchmark with jdk.incubator.vector added to the fork, so the SIMD kernel of
+ * bayeslabs-vector is picked up.  Only the vector profile (JDK 16 and later) compiles it, older JVMs
+ * refuse to start with the option.
+ */
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class VectorBlockSamplingBenchmark extends BlockSamplingBenchmark {
+}
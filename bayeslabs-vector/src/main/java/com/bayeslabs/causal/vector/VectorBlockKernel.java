@@ -0,0 +1,79 @@
+package com.bayeslabs.causal.vector;
+
+import com.bayeslabs.causal.model.CompiledNetwork;
+import com.bayeslabs.causal.sampling.BlockKernel;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * BlockKernel on the incubating Vector API, using the widest species of the host (8 lanes on AVX2,
+ * 16 on AVX-512).  Registered as a service, BlockKernels falls back to its scalar kernel when this
+ * class cannot be loaded because the JVM runs without --add-modules jdk.incubator.vector.
+ */
+public class VectorBlockKernel implements BlockKernel {
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+	@Override
+	public void index(long[] columns, CompiledNetwork network, int node, int[] index)
+	{
+		int start = network.getParentStart(node);
+		int end = network.getParentEnd(node);
+		int lanes = INTS.length();
+		IntVector iota = IntVector.zero(INTS).addIndex(1);
+		for(int base = 0; base < LANES; base += lanes)
+		{
+			IntVector shift = iota.add(base & 31);
+			IntVector acc = IntVector.zero(INTS);
+			for(int i = start; i < end; i++)
+			{
+				long word = columns[network.getParent(i)];
+				int half = (base < 32) ? (int)word : (int)(word >>> 32);
+				acc = acc.lanewise(VectorOperators.LSHL, 1)
+						.or(IntVector.broadcast(INTS, half).lanewise(VectorOperators.LSHR, shift).and(1));
+			}
+			acc.intoArray(index, base);
+		}
+	}
+
+	@Override
+	public long compare(float[] probs, float[] uniforms, int count)
+	{
+		long mask = 0;
+		int lanes = FLOATS.length();
+		int lane = 0;
+		for(; lane < FLOATS.loopBound(count); lane += lanes)
+		{
+			FloatVector p = FloatVector.fromArray(FLOATS, probs, lane);
+			FloatVector u = FloatVector.fromArray(FLOATS, uniforms, lane);
+			mask |= p.compare(VectorOperators.GE, u).toLong() << lane;
+		}
+		for(; lane < count; lane++)
+		{
+			if(probs[lane] >= uniforms[lane]) mask |= 1L << lane;
+		}
+		return mask;
+	}
+
+	@Override
+	public long compare(float prob, float[] uniforms, int count)
+	{
+		long mask = 0;
+		int lanes = FLOATS.length();
+		FloatVector p = FloatVector.broadcast(FLOATS, prob);
+		int lane = 0;
+		for(; lane < FLOATS.loopBound(count); lane += lanes)
+		{
+			mask |= p.compare(VectorOperators.GE, FloatVector.fromArray(FLOATS, uniforms, lane)).toLong() << lane;
+		}
+		for(; lane < count; lane++)
+		{
+			if(prob >= uniforms[lane]) mask |= 1L << lane;
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,296 @@
+package com.bayeslabs.causal.model;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes dense CPTs from elicitations (elicited value, NOR of the singletons below three active causes,
+ * RNOR of the smaller combinations above, then the leak) for both Event.priviewCPT and the Node
+ * constructor, and keeps the results in a shared cache keyed by the elicitation contents and the cause
+ * count.  Previewing an event and building its DBN, or building the same plan again, therefore compute a
+ * table once.  The cache is bounded by the number of floats it holds and evicts the least recently used
+ * tables first.
+ * <p>
+ * An entry depends only on entries with fewer active causes, so wide tables are computed one layer of
+ * equal popcount at a time with the entries of a layer split over a fork-join pool.  The result is the
+ * same, bit for bit, as computing the indices in ascending order.
+ */
+public final class CPTCompiler {
+
+	/**
+	 * Tables over at least this many causes are computed in parallel.
+	 */
+	public static final int PARALLEL_CAUSES = 14;
+	private static final int DEFAULT_CAPACITY = 1 << 22; // floats, 16 MB
+	private static final int SLICE = 4096; // entries per fork-join task
+
+	private static final LinkedHashMap<Fingerprint,float[]> cache = new LinkedHashMap<Fingerprint,float[]>(64, 0.75f, true);
+	private static long capacity = DEFAULT_CAPACITY;
+	private static long size = 0; // floats held by the cache
+
+	private CPTCompiler()
+	{
+	}
+
+	/**
+	 * Bounds the cache, evicting tables until it fits.  Tables larger than the capacity are not cached.
+	 * @param floats total number of CPT entries to keep, 0 turns caching off
+	 */
+	public static synchronized void setCapacity(long floats)
+	{
+		if(floats < 0) throw new IllegalArgumentException("negative capacity "+floats);
+		capacity = floats;
+		evict();
+	}
+
+	/**
+	 * Returns the number of CPT entries currently cached.
+	 */
+	public static synchronized long size()
+	{
+		return size;
+	}
+
+	/**
+	 * Drops every cached table.
+	 */
+	public static synchronized void clear()
+	{
+		cache.clear();
+		size = 0;
+	}
+
+	/**
+	 * Returns the CPT for the elicitations and cause count.  The table may be shared with other callers
+	 * and must not be modified.
+	 */
+	static float[] compile(ElicitationMap elicited, int causes)
+	{
+		Fingerprint key = new Fingerprint(elicited, causes);
+		float[] cpt = get(key);
+		if(cpt != null) return cpt;
+		cpt = (causes >= PARALLEL_CAUSES) ? computeParallel(elicited, causes) : compute(elicited, causes);
+		put(key, cpt);
+		return cpt;
+	}
+
+	private static synchronized float[] get(Fingerprint key)
+	{
+		return cache.get(key);
+	}
+
+	private static synchronized void put(Fingerprint key, float[] cpt)
+	{
+		if(cpt.length > capacity || cache.containsKey(key)) return;
+		cache.put(key, cpt);
+		size += cpt.length;
+		evict();
+	}
+
+	private static void evict()
+	{
+		Iterator<float[]> eldest = cache.values().iterator();
+		while(size > capacity && eldest.hasNext())
+		{
+			size -= eldest.next().length;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Fills the table in ascending index order.
+	 */
+	static float[] compute(ElicitationMap elicited, int causes)
+	{
+		float[] cpt = new float[1 << causes];
+		cpt[0] = elicited.get(0, 0f);
+		for(int index = 1; index < cpt.length; index++)
+		{
+			cpt[index] = entry(cpt, elicited, causes, index);
+		}
+		return updateWithLeak(cpt);
+	}
+
+	/**
+	 * Fills the table layer by layer of popcount, each layer in parallel.
+	 */
+	static float[] computeParallel(ElicitationMap elicited, int causes)
+	{
+		float[] cpt = new float[1 << causes];
+		cpt[0] = elicited.get(0, 0f);
+		// indices grouped by popcount (counting sort), ascending within a layer
+		int[] start = new int[causes + 2];
+		for(int index = 0; index < cpt.length; index++)
+		{
+			start[Integer.bitCount(index) + 1]++;
+		}
+		for(int layer = 0; layer <= causes; layer++)
+		{
+			start[layer + 1] += start[layer];
+		}
+		int[] order = new int[cpt.length];
+		int[] fill = Arrays.copyOf(start, causes + 1);
+		for(int index = 0; index < cpt.length; index++)
+		{
+			order[fill[Integer.bitCount(index)]++] = index;
+		}
+		ForkJoinPool pool = Pool.INSTANCE;
+		for(int layer = 1; layer <= causes; layer++)
+		{
+			pool.invoke(new Layer(cpt, elicited, causes, order, start[layer], start[layer + 1]));
+		}
+		return updateWithLeak(cpt);
+	}
+
+	/**
+	 * Computes one entry before the leak is applied, every subset of index must be done.
+	 */
+	private static float entry(float[] cpt, ElicitationMap elicited, int causes, int index)
+	{
+		float numerator = 1f;
+		float denominator = 1f;
+		int slot = elicited.indexOf(index);
+		if(slot >= 0) // this should take care of singletons & other specified probabilities
+		{
+			return elicited.valueAt(slot);
+		}
+		int active = Integer.bitCount(index);// number of set bits
+		if(active < 3)
+		{// NOR active bits
+			int lastvalue = index;
+			int nextbit;
+			for(int i=0;i<active;i++) // using active count
+			{
+				nextbit = lastvalue & -lastvalue; // find next lower set bit
+				numerator *= (1 - cpt[nextbit]); // look up single probability
+				lastvalue = lastvalue ^ nextbit; //clear that bit in the next iteration
+			}
+			return (1 - numerator);
+		}
+		// RNOR active bits
+		int nindex;
+		int dindex;
+		int MASK;
+		for(int bit=0;bit<causes;bit++) // here we use causes, slightly worse worst case
+		{
+			MASK = 1<<bit;
+			if((index & MASK) == MASK) // if bit is set
+			{
+				nindex = index^MASK; // if set, clear the bit
+				numerator *= (1 - cpt[nindex]); // lookup probability in cpt with nindex
+				for(int nbit= ((bit+1) % causes);;nbit++) // here we find the next set bit and clear it
+				{
+					MASK = 1 << nbit; // create new mask
+					if((nindex & MASK) == MASK) // if bit is set
+					{
+						dindex = nindex^(1<<nbit); // clear it
+						denominator *= (1 - cpt[dindex]); // lookup
+						break; // we only need the next one
+					}
+				}
+			}
+		}
+		// here we set the RNOR prob (check for den == 0 or num > den)
+		if(denominator < numerator) return 0f;
+		if(denominator == 0) return 1f;
+		return (1f - (numerator/denominator));
+	}
+
+	/**
+	 * If the leak probability is not zero we update the CPT to reflect that
+	 */
+	private static float[] updateWithLeak(float[] cpt)
+	{
+		if(cpt[0] > 0)
+		{
+			for(int i=1; i<cpt.length; i++)
+			{
+				cpt[i] = (1 - (1-cpt[i])*(1-cpt[0]));
+			}
+		}
+		return cpt;
+	}
+
+	/**
+	 * Entries order[from, to) of one popcount layer.
+	 */
+	private static final class Layer extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final float[] cpt;
+		private final ElicitationMap elicited;
+		private final int causes;
+		private final int[] order;
+		private final int from;
+		private final int to;
+
+		Layer(float[] cpt, ElicitationMap elicited, int causes, int[] order, int from, int to)
+		{
+			this.cpt = cpt;
+			this.elicited = elicited;
+			this.causes = causes;
+			this.order = order;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from > SLICE)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new Layer(cpt, elicited, causes, order, from, middle), new Layer(cpt, elicited, causes, order, middle, to));
+				return;
+			}
+			for(int i = from; i < to; i++)
+			{
+				cpt[order[i]] = entry(cpt, elicited, causes, order[i]);
+			}
+		}
+	}
+
+	/**
+	 * Pool of the parallel layers, created on first use.  Its threads are daemons.
+	 */
+	private static final class Pool
+	{
+		static final ForkJoinPool INSTANCE = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Cache key: the cause count and a copy of the elicited indices and probabilities.
+	 */
+	private static final class Fingerprint
+	{
+		private final int causes;
+		private final int[] keys;
+		private final float[] values;
+		private final int hash;
+
+		Fingerprint(ElicitationMap elicited, int causes)
+		{
+			this.causes = causes;
+			this.keys = elicited.copyKeys();
+			this.values = elicited.copyValues();
+			this.hash = (31 * causes + Arrays.hashCode(keys)) * 31 + Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if(!(other instanceof Fingerprint)) return false;
+			Fingerprint that = (Fingerprint)other;
+			return hash == that.hash && causes == that.causes && Arrays.equals(keys, that.keys) && Arrays.equals(values, that.values);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package com.bayeslabs.causal.model;
+
+import java.util.Arrays;
+
+/**
+ * Immutable, flat (struct of arrays) form of a topo sorted Node[] for the sampling inner loops.  The
+ * causes of all nodes are concatenated into one int[] addressed through an offset table, the CPTs into
+ * one float[] pool, and the per node scalars live in their own arrays, so a particle walks contiguous
+ * memory instead of chasing Node pointers.  Lazy CPTs (see Node.LAZY_CAUSES) are referenced rather than
+ * pooled.  The Node[] stays available as a view for observations and marginals.  A network with one node
+ * replaced shares all of this with its source, only that node's CPT is kept apart.
+ */
+public class CompiledNetwork {
+
+	private final Node[] nodes;
+	private final int[] parentoffset; // causes of node n are parents[parentoffset[n]..parentoffset[n+1])
+	private final int[] parents;
+	private final int[] cptoffset; // cpt of node n starts at cptpool[cptoffset[n]]
+	private final float[] cptpool;
+	private final LazyCPT[] lazy; // null for nodes with a pooled CPT
+	private final long[] rootmask; // bit n is set when node n has no causes
+	private final long[] leafmask; // bit n is set when node n causes nothing
+	private final float[] continuation;
+	private final float[] leak;
+	private final int replaced; // node whose CPT is in own instead of the pool, -1 for none
+	private final float[] own;
+
+	public CompiledNetwork(Node[] nodes)
+	{
+		this.nodes = nodes;
+		int size = nodes.length;
+		parentoffset = new int[size + 1];
+		cptoffset = new int[size + 1];
+		rootmask = new long[(size + 63) >>> 6];
+		leafmask = new long[(size + 63) >>> 6];
+		continuation = new float[size];
+		leak = new float[size];
+		lazy = new LazyCPT[size];
+		long cpts = 0;
+		for(int n = 0; n < size; n++)
+		{
+			int causes = nodes[n].getCauses().length;
+			parentoffset[n + 1] = parentoffset[n] + causes;
+			lazy[n] = nodes[n].lazyCPT();
+			if(lazy[n] == null) cpts += 1L << causes;
+			if(cpts > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("CPTs too large to compile: node "+nodes[n].getId());
+			cptoffset[n + 1] = (int)cpts;
+		}
+		parents = new int[parentoffset[size]];
+		cptpool = new float[cptoffset[size]];
+		for(int n = 0; n < size; n++)
+		{
+			System.arraycopy(nodes[n].getCauses(), 0, parents, parentoffset[n], nodes[n].getCauses().length);
+			if(lazy[n] == null) System.arraycopy(nodes[n].cpt(), 0, cptpool, cptoffset[n], cptoffset[n + 1] - cptoffset[n]);
+			if(nodes[n].isRoot()) rootmask[n >>> 6] |= 1L << n;
+			continuation[n] = nodes[n].getContinuation();
+			leak[n] = nodes[n].getConditional(0);
+			leafmask[n >>> 6] |= 1L << n;
+		}
+		for(int cause : parents)
+		{
+			leafmask[cause >>> 6] &= ~(1L << cause);
+		}
+		replaced = -1;
+		own = null;
+	}
+
+	/**
+	 * Same network with one node replaced by a node with the same causes, e.g. another elicitation of it
+	 * (see Node.reelicit).  The structure and the other CPTs are shared with the source instead of being
+	 * copied into a new pool.
+	 * @param node topo sort index of the replaced node
+	 */
+	public CompiledNetwork(CompiledNetwork source, int node, Node replacement)
+	{
+		if(!Arrays.equals(source.nodes[node].getCauses(), replacement.getCauses()))
+			throw new IllegalArgumentException("node "+replacement.getId()+" does not have the causes of the node it replaces");
+		nodes = source.nodes.clone();
+		nodes[node] = replacement;
+		parentoffset = source.parentoffset;
+		parents = source.parents;
+		cptoffset = source.cptoffset;
+		rootmask = source.rootmask;
+		leafmask = source.leafmask;
+		continuation = source.continuation.clone();
+		continuation[node] = replacement.getContinuation();
+		leak = source.leak.clone();
+		leak[node] = replacement.getConditional(0);
+		lazy = source.lazy.clone();
+		lazy[node] = replacement.lazyCPT();
+		if(source.replaced >= 0 && source.replaced != node)
+		{// only one CPT is kept apart, the one the source replaced goes into a pool of our own
+			cptpool = source.cptpool.clone();
+			System.arraycopy(source.own, 0, cptpool, cptoffset[source.replaced], source.own.length);
+		}else{
+			cptpool = source.cptpool;
+		}
+		replaced = (lazy[node] == null) ? node : -1;
+		own = (lazy[node] == null) ? replacement.cpt() : null;
+	}
+
+	public int size()
+	{
+		return nodes.length;
+	}
+
+	/**
+	 * Returns the Node[] this network was compiled from.
+	 */
+	public Node[] getNodes()
+	{
+		return nodes;
+	}
+
+	public boolean isRoot(int node)
+	{
+		return (rootmask[node >>> 6] & (1L << node)) != 0;
+	}
+
+	/**
+	 * True when the node is not a cause of any node.
+	 */
+	public boolean isLeaf(int node)
+	{
+		return (leafmask[node >>> 6] & (1L << node)) != 0;
+	}
+
+	/**
+	 * First position of the node's causes, see getParent.
+	 */
+	public int getParentStart(int node)
+	{
+		return parentoffset[node];
+	}
+
+	/**
+	 * Position after the node's last cause.
+	 */
+	public int getParentEnd(int node)
+	{
+		return parentoffset[node + 1];
+	}
+
+	/**
+	 * Topo sort index of the cause stored at a position between getParentStart and getParentEnd.
+	 */
+	public int getParent(int position)
+	{
+		return parents[position];
+	}
+
+	/**
+	 * Returns P(node | active causes).
+	 * @param node topo sort index
+	 * @param index Power Set index of the active causes, a long so lazy nodes can have more than 31 causes
+	 */
+	public float getConditional(int node, long index)
+	{
+		if(lazy[node] != null) return lazy[node].get(index);
+		if(node == replaced) return own[(int)index];
+		return cptpool[cptoffset[node] + (int)index];
+	}
+
+	/**
+	 * Looks up several CPT entries of one node at once, out[i] = P(node | index[i]) for i < count.
+	 */
+	public void getConditionals(int node, int[] index, float[] out, int count)
+	{
+		if(lazy[node] != null)
+		{
+			for(int i = 0; i < count; i++)
+			{
+				out[i] = lazy[node].get(index[i]);
+			}
+			return;
+		}
+		float[] pool = cptpool;
+		int offset = cptoffset[node];
+		if(node == replaced)
+		{
+			pool = own;
+			offset = 0;
+		}
+		for(int i = 0; i < count; i++)
+		{
+			out[i] = pool[offset + index[i]];
+		}
+	}
+
+	public float getContinuation(int node)
+	{
+		return continuation[node];
+	}
+
+	public float getLeak(int node)
+	{
+		return leak[node];
+	}
+}
@@ -0,0 +1,261 @@
+package com.bayeslabs.causal.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Elicited probabilities of an event by Power Set index, stored as parallel sorted int/float arrays.
+ * Adding or removing a cause re-keys the entries in place: both maps keep the keys in order, so no
+ * sorting, boxing or copying is needed.  As a Map the structure is a read-only view in key order, the
+ * primitive accessors (indexOf, keyAt, valueAt) avoid boxing for CPT construction.
+ */
+public final class ElicitationMap extends AbstractMap<Integer,Float> {
+
+	private int[] keys;
+	private float[] values;
+	private int size;
+	private EntrySet entries;
+
+	ElicitationMap()
+	{
+		this.keys = new int[8];
+		this.values = new float[8];
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the slot of an index, or a negative value if the index was not elicited.
+	 */
+	public int indexOf(int key)
+	{
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	public int keyAt(int slot)
+	{
+		return keys[slot];
+	}
+
+	public float valueAt(int slot)
+	{
+		return values[slot];
+	}
+
+	/**
+	 * Returns the probability elicited for a Power Set index, or missing if there is none.
+	 */
+	public float get(int key, float missing)
+	{
+		int slot = indexOf(key);
+		return (slot >= 0) ? values[slot] : missing;
+	}
+
+	public int[] copyKeys()
+	{
+		return Arrays.copyOf(keys, size);
+	}
+
+	public float[] copyValues()
+	{
+		return Arrays.copyOf(values, size);
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return (key instanceof Integer) && indexOf((Integer)key) >= 0;
+	}
+
+	@Override
+	public Float get(Object key)
+	{
+		if(!(key instanceof Integer)) return null;
+		int slot = indexOf((Integer)key);
+		return (slot >= 0) ? values[slot] : null;
+	}
+
+	@Override
+	public Set<Map.Entry<Integer,Float>> entrySet()
+	{
+		if(entries == null) entries = new EntrySet();
+		return entries;
+	}
+
+	void set(int key, float value)
+	{
+		int slot = indexOf(key);
+		if(slot >= 0)
+		{
+			values[slot] = value;
+			return;
+		}
+		slot = -slot - 1;
+		if(size == keys.length)
+		{
+			keys = Arrays.copyOf(keys, size << 1);
+			values = Arrays.copyOf(values, size << 1);
+		}
+		System.arraycopy(keys, slot, keys, slot + 1, size - slot);
+		System.arraycopy(values, slot, values, slot + 1, size - slot);
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+	}
+
+	/**
+	 * Sets count entries at once in one merge with the current entries, from the back so nothing is
+	 * shifted more than once.  The keys must be ascending (see sort); of equal keys the last one wins, as
+	 * if set had been called for each entry in turn.
+	 */
+	void setAll(int[] keys, float[] values, int count)
+	{
+		int needed = size + count;
+		if(needed > this.keys.length)
+		{
+			int capacity = Math.max(needed, this.keys.length << 1);
+			this.keys = Arrays.copyOf(this.keys, capacity);
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+		int i = size - 1;
+		int j = count - 1;
+		int write = needed; // first merged slot, the merged entries end at needed
+		int key;
+		float value;
+		while(i >= 0 || j >= 0)
+		{
+			if(i < 0 || (j >= 0 && keys[j] >= this.keys[i]))
+			{
+				key = keys[j];
+				value = values[j--];
+			}
+			else
+			{
+				key = this.keys[i];
+				value = this.values[i--];
+			}
+			if(write < needed && this.keys[write] == key) continue; // replaced by a later entry
+			this.keys[--write] = key;
+			this.values[write] = value;
+		}
+		if(write > 0)
+		{// equal keys were dropped, close the gap
+			System.arraycopy(this.keys, write, this.keys, 0, needed - write);
+			System.arraycopy(this.values, write, this.values, 0, needed - write);
+		}
+		size = needed - write;
+	}
+
+	/**
+	 * Sorts the entries between from and to by key for setAll, equal keys keep their order.  Does nothing
+	 * when they are already ascending.
+	 */
+	static void sort(int[] keys, float[] values, int from, int to)
+	{
+		int i = from + 1;
+		while(i < to && keys[i - 1] <= keys[i]) i++;
+		if(i >= to) return;
+		long[] order = new long[to - from];
+		for(i = from; i < to; i++)
+		{
+			order[i - from] = ((long)keys[i] << 32) | (i - from); // the position breaks ties
+		}
+		Arrays.sort(order);
+		float[] sorted = new float[to - from];
+		for(i = 0; i < order.length; i++)
+		{
+			sorted[i] = values[from + (int)order[i]];
+			keys[from + i] = (int)(order[i] >> 32);
+		}
+		System.arraycopy(sorted, 0, values, from, sorted.length);
+	}
+
+	void delete(int key)
+	{
+		int slot = indexOf(key);
+		if(slot < 0) return;
+		System.arraycopy(keys, slot + 1, keys, slot, size - slot - 1);
+		System.arraycopy(values, slot + 1, values, slot, size - slot - 1);
+		size--;
+	}
+
+	/**
+	 * Makes room for a new last cause: every index moves up one bit (the new cause is bit 0).
+	 */
+	void insertCause()
+	{
+		for(int i = 0; i < size; i++)
+		{
+			keys[i] <<= 1;
+		}
+	}
+
+	/**
+	 * Drops every combination that contains the cause at a bit position and closes the gap, the bits
+	 * above it move down by one.
+	 * @param bit position of the cause in the Power Set index, 0 is the last cause
+	 */
+	void removeCause(int bit)
+	{
+		int mask = 1 << bit;
+		int low = mask - 1;
+		int kept = 0;
+		int key;
+		for(int i = 0; i < size; i++)
+		{
+			key = keys[i];
+			if((key & mask) != 0) continue;
+			keys[kept] = ((key >>> (bit + 1)) << bit) | (key & low);
+			values[kept++] = values[i];
+		}
+		size = kept;
+	}
+
+	private final class EntrySet extends AbstractSet<Map.Entry<Integer,Float>>
+	{
+		@Override
+		public int size()
+		{
+			return size;
+		}
+
+		@Override
+		public Iterator<Map.Entry<Integer,Float>> iterator()
+		{
+			return new Iterator<Map.Entry<Integer,Float>>()
+			{
+				private int next = 0;
+
+				@Override
+				public boolean hasNext()
+				{
+					return next < size;
+				}
+
+				@Override
+				public Map.Entry<Integer,Float> next()
+				{
+					if(next >= size) throw new NoSuchElementException();
+					Map.Entry<Integer,Float> entry = new AbstractMap.SimpleImmutableEntry<Integer,Float>(keys[next], values[next]);
+					next++;
+					return entry;
+				}
+
+				@Override
+				public void remove()
+				{
+					throw new UnsupportedOperationException("elicitations are changed through Event");
+				}
+			};
+		}
+	}
+}
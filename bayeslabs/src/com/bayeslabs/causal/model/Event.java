@@ -2,7 +2,7 @@ package com.bayeslabs.causal.model;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Event {
 	
@@ -11,10 +11,13 @@ public class Event {
 	
 	private int persitence = 1;
 	private float continuation = 1.0f;
-	private final TreeMap<Integer,Float> elicited = new TreeMap<Integer,Float>();
+	private final ElicitationMap elicited = new ElicitationMap();
 	private final HashMap<Integer,Float> observations = new HashMap<Integer, Float>();
 	private float[] marginal = null;
 	
+	private static final AtomicLong CLOCK = new AtomicLong(); // stamps are unique across all events
+	private long stamp = CLOCK.incrementAndGet(); // last change of anything a Node is built from
+	private long cptstamp = stamp; // last change of the CPT inputs: causes, elicitations and leak
 
 	private ArrayList<Integer> causes;
 	private ArrayList<Integer> effects;
@@ -28,7 +31,7 @@ public class Event {
 	public Event(int id)
 	{
 		this.id = id;
-		elicited.put(0, 0.0f);
+		elicited.set(0, 0.0f);
 		causes = new ArrayList<Integer>();
 		effects = new ArrayList<Integer>();
 		this.name=id+"";
@@ -51,7 +54,7 @@ public class Event {
 	public Event(int id,String name)
 	{
 		this.id = id;
-		elicited.put(0, 0.0f);
+		elicited.set(0, 0.0f);
 		causes = new ArrayList<Integer>();
 		effects = new ArrayList<Integer>();
 		this.name=name;
@@ -63,18 +66,30 @@ public class Event {
 	 */
 	public void addCause(Integer id)
 	{
-		TreeMap<Integer,Float> temp = new TreeMap<Integer,Float>(elicited);
-		elicited.clear();
 		causes.add(id);
-		int newkey;
-		float value;
-		for(int key : temp.keySet())
+		this.changed(true);
+		elicited.insertCause(); // every current index shifts its bits left by one
+		elicited.set(1, 1.0f); // last item always has Power Set index of 1, def prob is 1.0
+	}
+	/**
+	 * Gives an event without causes all of its causes at once, used by PlanBuilder.  Each cause gets the
+	 * default singleton probability 1.0f as with addCause, the layout of the indices is computed once.
+	 * @param causes cause ids, the first one is the high order bit
+	 */
+	void setCauses(ArrayList<Integer> causes)
+	{
+		if(!this.causes.isEmpty()) throw new IllegalStateException("event "+id+" already has causes");
+		this.causes = causes;
+		this.changed(true);
+		int count = causes.size();
+		int[] keys = new int[count];
+		float[] values = new float[count];
+		for(int bit = 0; bit < count; bit++)
 		{
-			value = temp.get(key);
-			newkey = key << 1; // take the current key and shift its bits left by one to get the new index
-			elicited.put(newkey, value);
+			keys[bit] = 1 << bit;
+			values[bit] = 1.0f;
 		}
-		elicited.put(1, 1.0f); // last item always has Power Set index of 1, def prob is 1.0
+		elicited.setAll(keys, values, count);
 	}
 //	public void addCause(Integer id, boolean )
 //	{
@@ -97,33 +112,12 @@ public class Event {
 	 */
 	public void removeCause(int id)
 	{
-		int ithbit = causes.size() - causes.indexOf(id); // determine the ith bit (start with 1 not 0)
-		int ei = 1 << (causes.indexOf(id) - (causes.size()-1)); // find cause's index inside elicited array
-		TreeMap<Integer,Float> temp = new TreeMap<Integer,Float>(elicited);
-		elicited.clear();
-		int MASK = 1 << (ithbit - 1);
-		int newkey;
-		float value;
-		// now use the index of a single cause and remove any combinations with that cause
-		for(int key : temp.keySet())
-		{
-			if((key & MASK) == MASK)
-			{
-				// we do nothing with it.
-			}else{
-				if(key > ei)
-				{
-					value = temp.get(key);
-					// shift bits to the right by 1
-					newkey = key >> 1;
-					elicited.put(newkey, value);
-				}else{
-					elicited.put(key, temp.get(key));
-				}
-			}
-		}
-		causes.remove(new Integer(id));
-		
+		int position = causes.indexOf(id);
+		if(position < 0) return;
+		// the first cause is the high order bit, drop combinations with its bit and close the gap
+		elicited.removeCause(causes.size() - 1 - position);
+		causes.remove(position);
+		this.changed(true);
 	}
 	public int getId() {
 		return id;
@@ -139,8 +133,47 @@ public class Event {
 	public void addElicittion(int index, float probability)
 	{
 		if(index < (1 << causes.size()))
-			elicited.put(index, probability);
-		
+		{
+			elicited.set(index, probability);
+			this.changed(true);
+		}
+	}
+	
+	/**
+	 * Adds or sets count elicited probabilities at once, indices out of bounds are skipped like in
+	 * addElicittion.  The entries are merged into the existing ones in a single pass, ascending indices
+	 * need no sorting first; of repeated indices the last one wins.  The arrays are not changed.
+	 * @param indices Power Set indices of combinations of causes
+	 * @param probabilities new probabilities
+	 * @param count number of entries to take
+	 */
+	public void addElicitations(int[] indices, float[] probabilities, int count)
+	{
+		int bound = 1 << causes.size();
+		this.changed(true);
+		int valid = 0;
+		boolean ascending = true;
+		for(int i = 0; i < count; i++)
+		{
+			if(indices[i] < bound) valid++;
+			if(i > 0 && indices[i - 1] > indices[i]) ascending = false;
+		}
+		if(valid == count && ascending)
+		{
+			elicited.setAll(indices, probabilities, count);
+			return;
+		}
+		int[] keys = new int[valid];
+		float[] values = new float[valid];
+		valid = 0;
+		for(int i = 0; i < count; i++)
+		{
+			if(indices[i] >= bound) continue;
+			keys[valid] = indices[i];
+			values[valid++] = probabilities[i];
+		}
+		ElicitationMap.sort(keys, values, 0, valid);
+		elicited.setAll(keys, values, valid);
 	}
 
 	/**
@@ -150,7 +183,8 @@ public class Event {
 	 */
 	public void removeElicitation(int index)
 	{
-		elicited.remove(index);
+		elicited.delete(index);
+		this.changed(true);
 	}
 	
 	public void addEffect(int effect)
@@ -169,12 +203,13 @@ public class Event {
 
 	public float getLeak() {
 		
-			return elicited.get(0);
+			return elicited.get(0, 0f);
 		
 	}
 
 	public void setLeak(float leak) {
-		this.elicited.put(0, leak);
+		this.elicited.set(0, leak);
+		this.changed(true);
 	}
 
 	public int getPersitence() {
@@ -183,6 +218,7 @@ public class Event {
 
 	public void setPersitence(int persitence) {
 		this.persitence = persitence;
+		this.changed(false);
 	}
 
 	public float getContinuation() {
@@ -191,21 +227,47 @@ public class Event {
 
 	public void setContinuation(float continuation) {
 		this.continuation = continuation;
+		this.changed(false);
 	}
-	public TreeMap<Integer, Float> getElicited() {
+	/**
+	 * Returns a read-only view of the elicited probabilities by Power Set index, in index order.
+	 */
+	public ElicitationMap getElicited() {
 		return elicited;
 	}
 	public void addObservation(int time, float value)
 	{
 		this.observations.put(time, value);
+		this.changed(false);
 	}
 	public void clearObservationAt(int time)
 	{
 		this.observations.remove(time);
+		this.changed(false);
 	}
 	public void clearObservations()
 	{
 		this.observations.clear();
+		this.changed(false);
+	}
+	
+	/**
+	 * Records a change for Plan.buildDBN, which rebuilds only the nodes of events changed since the last
+	 * build.  Changes made through the lists and maps returned by the getters are not seen.
+	 * @param cpt true if the change affects the CPT
+	 */
+	private void changed(boolean cpt)
+	{
+		stamp = CLOCK.incrementAndGet();
+		if(cpt) cptstamp = stamp;
+	}
+	long stamp()
+	{
+		return stamp;
+	}
+	long cptStamp()
+	{
+		return cptstamp;
 	}
 	public HashMap<Integer,Float> getObservations()
 	{
@@ -218,104 +280,11 @@ public class Event {
 	
 	/**
 	 * Used to preview the CPT when used for user interaction with the CPT.
-	 * @return
+	 * @return a copy of the CPT, which CPTCompiler computes once per distinct set of elicitations
 	 */
 	public float[] priviewCPT()
 	{
-		
-		int active;
-		float numerator;
-		float denominator;
-		float[] cpt = new float[1 << causes.size()];
-		
-		if(elicited.containsKey(0)){ cpt[0] = elicited.get(0);}
-		
-		for(int index = 1; index < cpt.length; index++)
-		{
-			numerator = 1f;
-			denominator = 1f;
-			if(elicited.containsKey(index)) // this should take care of singletons & other specified probabilities
-			{
-				cpt[index] = elicited.get(index);
-				continue;
-			}
-			active = this.pop(index);// number of set bits
-			if(active < 3)
-			{// NOR active bits
-				int lastvalue = index;
-				int nextbit;
-				for(int i=0;i<active;i++) // using active count
-				{
-					//temp = index ^ (1<<bit); // clear the bit
-					//if(index != temp) //check if bit was set
-					nextbit = lastvalue & -lastvalue; // find next lower set bit
-					numerator *= (1 - cpt[nextbit]); // look up single probability
-					lastvalue = lastvalue ^ nextbit; //clear that bit in the next iteration
-				}
-				cpt[index] = (1 - numerator); //set the cpt value
-			}else
-			{// RNOR active bits
-				int nindex;
-				int dindex;
-				int MASK;
-				for(int bit=0;bit<causes.size();bit++) // here we use causes, slightly worse worst case
-				{
-					MASK = 1<<bit;
-					if((index & MASK) == MASK) // if bit is set
-					{
-						nindex = index^MASK; // if set, clear the bit
-						numerator *= (1 - cpt[nindex]); // lookup probability in cpt with nindex
-						for(int nbit= ((bit+1) % causes.size());;nbit++) // here we find the next set bit and clear it
-						{
-							MASK = 1 << nbit; // create new mask
-							if((nindex & MASK) == MASK) // if bit is set
-							{
-								dindex = nindex^(1<<nbit); // clear it
-								denominator *= (1 - cpt[dindex]); // lookup
-								break; // we only need the next one
-							}
-						}
-						
-					}else{
-						continue; // not active bit
-					}
-				}
-				// here we set the RNOR prob (check for den == 0 or num > den)
-				if(denominator < numerator)
-				{
-					cpt[index] = 0f;
-				}
-				else if(denominator == 0)
-				{
-					cpt[index] = 1f;
-				}
-				else {cpt[index] = (1f - (numerator/denominator));}
-			}
-		}// end of index iteration
-		
-		return updateWithLeak(cpt);
-	}
-	
-	private float[] updateWithLeak(float[] cpt)
-	{
-		if(cpt[0] > 0)
-		{
-			for(int i=1; i<cpt.length; i++)
-			{
-				cpt[i] = (1 - (1-cpt[i])*(1-cpt[0]));
-			}
-		}
-		return cpt;
-	}
-	
-	private int pop(int x)
-	{
-		x = x - ((x>>1) & 0x55555555);
-		x = (x & 0x33333333) + ((x>>2) & 0X33333333);
-		x = (x + ( x>>4 )) & 0X0F0F0F0F;
-		x = x + (x>>8);
-		x = x + (x >>16);
-		return x & 0x0000003F;
+		return CPTCompiler.compile(elicited, causes.size()).clone();
 	}
 
 }
@@ -0,0 +1,227 @@
+package com.bayeslabs.causal.model;
+
+import java.util.Arrays;
+
+/**
+ * CPT of a high in-degree node that computes an entry the first time it is asked for instead of filling
+ * all 2^n entries up front.  Entries follow the same rules as Node.buildCPT (elicited value, NOR of the
+ * singletons below three active causes, RNOR of the smaller combinations above).  An entry depends on
+ * every subset of its active causes, so a missing one is computed bottom-up over that lattice in a local
+ * table, in ascending subset order like CPTCompiler, at O(2^k k) for k active causes.  This bounds a
+ * lookup by the active causes rather than by the node's in-degree.  Above MAX_ACTIVE active causes the
+ * table would get too large, so such an entry recurses over its subsets through the cache instead until
+ * they are narrow enough for a table; memory stays bounded but the time grows quickly with the width.
+ * Finished pre-leak values are kept in a bounded, direct mapped cache; parent-state keys are longs so
+ * up to 63 causes are supported.  Lookups are safe from several sampling threads.
+ */
+class LazyCPT {
+
+	public static final int MAX_CAUSES = 63;
+	/**
+	 * Most causes active in an entry that is computed in one subset table, which then holds 2^20 floats
+	 * (4 MB).  Wider entries recurse over their subsets.
+	 */
+	public static final int MAX_ACTIVE = 20;
+	private static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private final int causes;
+	private final int[] keys; // elicited indices, sorted
+	private final float[] values; // elicited probabilities
+	private final float leak;
+	private final Entry[] cache;
+	private final int mask;
+
+	LazyCPT(ElicitationMap elicited, int causes)
+	{
+		this(elicited, causes, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param elicited elicited probabilities by Power Set index
+	 * @param causes number of causes
+	 * @param capacity cache slots, rounded up to a power of two
+	 */
+	LazyCPT(ElicitationMap elicited, int causes, int capacity)
+	{
+		if(causes > MAX_CAUSES) throw new IllegalArgumentException("at most "+MAX_CAUSES+" causes are supported: "+causes);
+		this.causes = causes;
+		this.keys = elicited.copyKeys();
+		this.values = elicited.copyValues();
+		this.leak = elicited.get(0, 0f);
+		int slots = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.cache = new Entry[slots];
+		this.mask = slots - 1;
+	}
+
+	public int getCauses()
+	{
+		return causes;
+	}
+
+	/**
+	 * Returns P(node | active causes), with the leak applied.
+	 * @param index Power Set index of the active causes, first cause is the high order bit
+	 */
+	public float get(long index)
+	{
+		if(index == 0) return leak;
+		float p = raw(index, false);
+		if(leak > 0)
+		{
+			p = (1 - (1-p)*(1-leak));
+		}
+		return p;
+	}
+
+	/**
+	 * Entry before the leak is applied, this is what the NOR/RNOR rules combine.
+	 * @param wide the entry is asked for by a wider one, which will want its subsets one cause smaller next
+	 */
+	private float raw(long index, boolean wide)
+	{
+		int slot = (int)(mix(index) & mask);
+		Entry entry = cache[slot];
+		if(entry != null && entry.key == index) return entry.value;
+		float value = compute(index, wide);
+		cache[slot] = new Entry(index, value);
+		return value;
+	}
+
+	/**
+	 * Computes an entry from all subsets of its active causes.  Subset s of the table stands for the
+	 * active causes selected by the bits of s, which keeps their order, so the rules can be applied to
+	 * the table indices directly and every subset of s comes before s.
+	 */
+	private float compute(long index, boolean wide)
+	{
+		int active = Long.bitCount(index);
+		if(active > MAX_ACTIVE) return recurse(index);
+		long[] bits = new long[active]; // active causes, lowest first
+		long rest = index;
+		for(int i = 0; i < active; i++)
+		{
+			bits[i] = rest & -rest;
+			rest ^= bits[i];
+		}
+		float[] table = new float[1 << active];
+		for(int s = 1; s < table.length; s++)
+		{
+			table[s] = entry(table, s, bits);
+		}
+		int all = table.length - 1;
+		if(wide)
+		{// the RNOR of the wider entry takes these from the cache instead of building their tables again
+			for(int i = 0; i < active; i++)
+			{
+				long smaller = index ^ bits[i];
+				cache[(int)(mix(smaller) & mask)] = new Entry(smaller, table[all ^ (1 << i)]);
+			}
+		}
+		return table[all];
+	}
+
+	/**
+	 * RNOR of an entry with more than MAX_ACTIVE active causes, taking its subsets from raw() so the ones
+	 * that fit get their own table and the wider ones recurse again.
+	 */
+	private float recurse(long index)
+	{
+		if(index <= Integer.MAX_VALUE)
+		{
+			int at = Arrays.binarySearch(keys, (int)index);
+			if(at >= 0) return values[at];
+		}
+		float numerator = 1f;
+		float denominator = 1f;
+		long rest = index;
+		long bit;
+		long nindex;
+		while(rest != 0)
+		{
+			bit = rest & -rest;
+			rest ^= bit;
+			nindex = index ^ bit; // clear the bit
+			numerator *= (1 - raw(nindex, true));
+			// clear the next set bit above it, wrapping around to the lowest one
+			long above = nindex & ~((bit << 1) - 1);
+			long next = (above != 0) ? (above & -above) : (nindex & -nindex);
+			denominator *= (1 - raw(nindex ^ next, true));
+		}
+		if(denominator < numerator) return 0f;
+		if(denominator == 0) return 1f;
+		return 1f - (numerator/denominator);
+	}
+
+	/**
+	 * Entry of subset s, every subset of s must be done.
+	 */
+	private float entry(float[] table, int s, long[] bits)
+	{
+		long real = 0;
+		for(int r = s; r != 0; r &= r - 1)
+		{
+			real |= bits[Integer.numberOfTrailingZeros(r)];
+		}
+		if(real <= Integer.MAX_VALUE)
+		{
+			int at = Arrays.binarySearch(keys, (int)real);
+			if(at >= 0) return values[at]; // this should take care of singletons & other specified probabilities
+		}
+		int active = Integer.bitCount(s);
+		if(active == 1) return 0f; // singleton that was never elicited
+		float numerator = 1f;
+		if(active < 3)
+		{// NOR active bits
+			int lastvalue = s;
+			int nextbit;
+			while(lastvalue != 0)
+			{
+				nextbit = lastvalue & -lastvalue; // next lower set bit
+				numerator *= (1 - table[nextbit]);
+				lastvalue ^= nextbit;
+			}
+			return 1 - numerator;
+		}
+		// RNOR active bits
+		float denominator = 1f;
+		int rest = s;
+		int bit;
+		int nindex;
+		while(rest != 0)
+		{
+			bit = rest & -rest;
+			rest ^= bit;
+			nindex = s ^ bit; // clear the bit
+			numerator *= (1 - table[nindex]);
+			// clear the next set bit above it, wrapping around to the lowest one
+			int above = nindex & ~((bit << 1) - 1);
+			int next = (above != 0) ? (above & -above) : (nindex & -nindex);
+			denominator *= (1 - table[nindex ^ next]);
+		}
+		// here we set the RNOR prob (check for den == 0 or num > den)
+		if(denominator < numerator) return 0f;
+		if(denominator == 0) return 1f;
+		return 1f - (numerator/denominator);
+	}
+
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		return z ^ (z >>> 33);
+	}
+
+	/**
+	 * Immutable cache slot, the final fields make a racy publication safe.
+	 */
+	private static final class Entry
+	{
+		final long key;
+		final float value;
+
+		Entry(long key, float value)
+		{
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
@@ -1,19 +1,29 @@
 package com.bayeslabs.causal.model;
 
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.Map;
 
 
 
 public class Node {
 	
+	/**
+	 * Nodes with more causes than this compute their CPT entries on demand (LazyCPT) instead of
+	 * allocating all 2^causes of them.
+	 */
+	public static final int LAZY_CAUSES = 20;
+	
 	private int[] causes; // holds topo_sort sample indices of its causes
 	private int persistance;  // how long the effect lasts at P(T)
 	private float continuation;  // P(T+1 | T)
 	private int id;
-	private float[] cpt;
+	private float[] cpt; // dense CPT, null when lazy is used
+	private LazyCPT lazy;
 	private final HashMap<Integer,Float> observations; // this includes upstream and downstream evidence
 	private float[] marginal; // computed marginals
+	private final long stamp; // Event stamps this node was built from, see Plan.buildDBN
+	private final long cptstamp;
 	
 	
 	
@@ -28,12 +38,35 @@ public class Node {
 		this.persistance = event.getPersitence();
 		this.continuation = event.getContinuation();
 		this.observations = new HashMap<Integer,Float>(event.getObservations());
-		this.cpt = new float[1 << causes.length];
-		//cpt[0] = 0f;
-		this.buildCPT(event.getElicited());
+		this.stamp = event.stamp();
+		this.cptstamp = event.cptStamp();
+		if(causes.length > LAZY_CAUSES)
+		{
+			this.lazy = new LazyCPT(event.getElicited(), causes.length);
+		}else{
+			this.cpt = CPTCompiler.compile(event.getElicited(), causes.length); // shared, never written
+		}
 		
 		
 	}
+	
+	/**
+	 * Rebuilds the node of an event whose CPT inputs did not change since previous was built, the CPT
+	 * (dense or lazy) is shared rather than computed again.
+	 */
+	Node(Event event, int[] topocauses, int steps, Node previous)
+	{
+		this.id = event.getId();
+		this.marginal = new float[steps+1];
+		this.causes = topocauses;
+		this.persistance = event.getPersitence();
+		this.continuation = event.getContinuation();
+		this.observations = new HashMap<Integer,Float>(event.getObservations());
+		this.stamp = event.stamp();
+		this.cptstamp = previous.cptstamp;
+		this.cpt = previous.cpt;
+		this.lazy = previous.lazy;
+	}
 	public float getMarginal(int time) {
 		return marginal[time];
 	}
@@ -55,84 +88,110 @@ public class Node {
 	}
 	public float getConditional(int index)
 	{
-		return cpt[index];
+		if(cpt != null) return cpt[index];
+		return lazy.get(index);
 	}
-	public boolean isRoot()
+	/**
+	 * Same as getConditional(int) for nodes with more than 31 causes, only lazy CPTs can be that wide.
+	 * @param index Power Set index of the active causes
+	 * @return P(node | active causes)
+	 */
+	public float getConditional(long index)
 	{
-		if(causes.length > 0)return false; else return true;
+		if(cpt != null) return cpt[(int)index];
+		return lazy.get(index);
+	}
+	/**
+	 * Returns true if CPT entries are computed on demand rather than stored.
+	 */
+	public boolean isLazy()
+	{
+		return lazy != null;
+	}
+	/**
+	 * Returns a copy of the node for a smaller network, with its causes renumbered.  The copy shares the
+	 * CPT and observations of this node and has its own marginals.
+	 * @param topocauses topo sort indices of the causes in the smaller network, in the same order
+	 */
+	public Node renumber(int[] topocauses)
+	{
+		if(topocauses.length != causes.length) throw new IllegalArgumentException("node "+id+" has "+causes.length+" causes, not "+topocauses.length);
+		return new Node(this, topocauses);
 	}
 	
-	private void buildCPT(TreeMap<Integer,Float> elicited)
+	private Node(Node source, int[] topocauses)
 	{
-		int active;
-		float numerator;
-		float denominator;
-		
-		if(elicited.containsKey(0)){ cpt[0] = elicited.get(0);}
-		
-		for(int index = 1; index < cpt.length; index++)
+		this.id = source.id;
+		this.marginal = new float[source.marginal.length];
+		this.causes = topocauses;
+		this.persistance = source.persistance;
+		this.continuation = source.continuation;
+		this.observations = source.observations;
+		this.stamp = source.stamp;
+		this.cptstamp = source.cptstamp;
+		this.cpt = source.cpt;
+		this.lazy = source.lazy;
+	}
+	
+	/**
+	 * Returns a copy of the node whose CPT is compiled from the elicitations with one probability set to
+	 * another value, e.g. to perturb it.  The copy shares the causes and observations of this node and has
+	 * its own marginals; its CPT is not cached.
+	 * @param elicited elicitations the node was built from, see Event.getElicited
+	 * @param index Power Set index of the elicitation to set
+	 * @param probability its value in the copy
+	 */
+	public Node reelicit(ElicitationMap elicited, int index, float probability)
+	{
+		ElicitationMap changed = new ElicitationMap();
+		changed.setAll(elicited.copyKeys(), elicited.copyValues(), elicited.size());
+		changed.set(index, probability);
+		return new Node(this, changed);
+	}
+	
+	private Node(Node source, ElicitationMap elicited)
+	{
+		this.id = source.id;
+		this.marginal = new float[source.marginal.length];
+		this.causes = source.causes;
+		this.persistance = source.persistance;
+		this.continuation = source.continuation;
+		this.observations = source.observations;
+		this.stamp = -1L; // never current for an event
+		this.cptstamp = -1L;
+		if(causes.length > LAZY_CAUSES)
 		{
-			numerator = 1f;
-			denominator = 1f;
-			if(elicited.containsKey(index)) // this should take care of singletons & other specified probabilities
-			{
-				cpt[index] = elicited.get(index);
-				continue;
-			}
-			active = this.pop(index);// number of set bits
-			if(active < 3)
-			{// NOR active bits
-				int lastvalue = index;
-				int nextbit;
-				for(int i=0;i<active;i++) // using active count
-				{
-					//temp = index ^ (1<<bit); // clear the bit
-					//if(index != temp) //check if bit was set
-					nextbit = lastvalue & -lastvalue; // find next lower set bit
-					numerator *= (1 - cpt[nextbit]); // look up single probability
-					lastvalue = lastvalue ^ nextbit; //clear that bit in the next iteration
-				}
-				cpt[index] = (1 - numerator); //set the cpt value
-			}else
-			{// RNOR active bits
-				int nindex;
-				int dindex;
-				int MASK;
-				for(int bit=0;bit<causes.length;bit++) // here we use causes, slightly worse worst case
-				{
-					MASK = 1<<bit;
-					if((index & MASK) == MASK) // if bit is set
-					{
-						nindex = index^MASK; // if set, clear the bit
-						numerator *= (1 - cpt[nindex]); // lookup probability in cpt with nindex
-						for(int nbit= ((bit+1) % causes.length);;nbit++) // here we find the next set bit and clear it
-						{
-							MASK = 1 << nbit; // create new mask
-							if((nindex & MASK) == MASK) // if bit is set
-							{
-								dindex = nindex^(1<<nbit); // clear it
-								denominator *= (1 - cpt[dindex]); // lookup
-								break; // we only need the next one
-							}
-						}
-						
-					}else{
-						continue; // not active bit
-					}
-				}
-				// here we set the RNOR prob (check for den == 0 or num > den)
-				if(denominator < numerator)
-				{
-					cpt[index] = 0f;
-				}
-				else if(denominator == 0)
-				{
-					cpt[index] = 1f;
-				}
-				else {cpt[index] = (1f - (numerator/denominator));}
-			}
-		}// end of index iteration
-		this.updateWithLeak();
+			this.lazy = new LazyCPT(elicited, causes.length);
+		}else{
+			this.cpt = CPTCompiler.compute(elicited, causes.length);
+		}
+	}
+	
+	/**
+	 * True if nothing the node was built from changed in the event since.
+	 */
+	boolean isCurrent(Event event, int steps)
+	{
+		return stamp == event.stamp() && marginal.length == steps+1;
+	}
+	/**
+	 * True if the CPT of the node is still the CPT of the event.
+	 */
+	boolean hasCurrentCPT(Event event)
+	{
+		return cptstamp == event.cptStamp() && causes.length == event.getCauses().size();
+	}
+	float[] cpt()
+	{
+		return cpt;
+	}
+	LazyCPT lazyCPT()
+	{
+		return lazy;
+	}
+	public boolean isRoot()
+	{
+		if(causes.length > 0)return false; else return true;
 	}
 	
 	public int getPersistance() {
@@ -155,6 +214,13 @@ public class Node {
 	{
 		return observations.get(time);
 	}
+	/**
+	 * Returns a read-only view of the observations by time step.
+	 */
+	public Map<Integer,Float> getObservations()
+	{
+		return Collections.unmodifiableMap(observations);
+	}
 
 	public static int countBitsSet(int i)
 	{
@@ -163,33 +229,9 @@ public class Node {
 		return ((i + (i>>4) & 0xF0F0F0F) * 0x1010101) >> 24;
 	}
 	
-	// counts number of bits set - uses ~ 20 instructions. (Hacker's Delight, p.65)
-	private int pop(int x)
-	{
-		x = x - ((x>>1) & 0x55555555);
-		x = (x & 0x33333333) + ((x>>2) & 0X33333333);
-		x = (x + ( x>>4 )) & 0X0F0F0F0F;
-		x = x + (x>>8);
-		x = x + (x >>16);
-		return x & 0x0000003F;
-	}
-	
-	/**
-	 * If the leak probability is not zero we update the CPT to reflect that
-	 */
-	private void updateWithLeak()
-	{
-		if(cpt[0] > 0)
-		{
-			for(int i=1; i<cpt.length; i++)
-			{
-				cpt[i] = (1 - (1-cpt[i])*(1-cpt[0]));
-			}
-		}
-	}
-	
 	public String printCPT()
 	{
+		if(lazy != null) return "lazy CPT over "+causes.length+" causes";
 		String cpts = "";
 		for(int i=0; i<cpt.length;i++)
 		{
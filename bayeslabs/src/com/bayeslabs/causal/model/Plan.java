@@ -1,8 +1,12 @@
 package com.bayeslabs.causal.model;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.TreeMap;
 
 
@@ -13,6 +17,11 @@ private TreeMap<Integer, Event> events; // adjacency effect list
 	private String name;
 	private int counter = 0;
 	private Node[] nodes;
+	private CompiledNetwork network;
+	private HashMap<Integer,Integer> order; // cached <ID,TOPO Index>, null when it has to be rebuilt
+	private ArrayList<Integer> sorted; // cached TOPO Index -> ID
+	private int structure = 0; // bumped by every change of events or links
+	private int built = -1; // structure the last buildDBN saw
 	
 	
 	public Plan(String name)
@@ -28,12 +37,12 @@ private TreeMap<Integer, Event> events; // adjacency effect list
 	public void addEvent(String name)
 	{
 		counter++;
-		events.put(counter,new Event(counter,name));
+		this.addEvent(new Event(counter,name));
 		
 	}
 	public void addEvent(String name, int id)
 	{
-		events.put(id, new Event(id,name));
+		this.addEvent(new Event(id,name));
 	}
 	/**
 	 * Method used to add an existing Event to the plan.  This method is used in retrieving stored plans.
@@ -41,7 +50,18 @@ private TreeMap<Integer, Event> events; // adjacency effect list
 	 */
 	public void addEvent(Event event)
 	{
-		events.put(event.getId(), event);
+		Event replaced = events.put(event.getId(), event);
+		structure++;
+		if(order == null) return;
+		if(replaced == null && event.getCauses().isEmpty() && event.getEffects().isEmpty())
+		{
+			// a new unlinked event can go last
+			order.put(event.getId(), sorted.size());
+			sorted.add(event.getId());
+		}else{
+			order = null; // links we have not seen, sort again on next use
+			sorted = null;
+		}
 	}
 	
 	
@@ -49,11 +69,15 @@ private TreeMap<Integer, Event> events; // adjacency effect list
 	 * Method connects two events with a probabilistic causal relationship.
 	 * @param from specify from event id
 	 * @param to specify to event id
+	 * @throws IllegalArgumentException if the link would create a cycle, the plan is left unchanged
 	 */
 	public void addLink(int from, int to)
 	{
+		if(from == to) throw new IllegalArgumentException("event "+from+" cannot cause itself");
+		this.reorder(from, to);
 		events.get(to).addCause(from);
 		events.get(from).addEffect(to);
+		structure++;
 	}
 	/**
 	 * Method sets a probability for a single or a combination of causes.
@@ -65,6 +89,17 @@ private TreeMap<Integer, Event> events; // adjacency effect list
 	{
 		events.get(event).addElicittion(index, probability);
 	}
+	/**
+	 * Method sets several probabilities of one event at once, see setElicitation.
+	 * @param event variable id
+	 * @param indices Power Set representations of active causes
+	 * @param probabilities causal probabilities, one per index
+	 */
+	public void setElicitations(int event, int[] indices, float[] probabilities)
+	{
+		if(indices.length != probabilities.length) throw new IllegalArgumentException(indices.length+" indices for "+probabilities.length+" probabilities");
+		events.get(event).addElicitations(indices, probabilities, indices.length);
+	}
 	/**
 	 * Method specifies transition probability from time X to time X+1
 	 * @param event
@@ -99,6 +134,8 @@ private TreeMap<Integer, Event> events; // adjacency effect list
 		events.get(to).removeCause(from);
 		// remove 'to' as an effect for 'from'
 		events.get(from).removeEffect(to);
+		// removing an edge keeps the cached order valid
+		structure++;
 	}
 	/**
 	 * Method removes a variable from a plan and its associated causal influences.
@@ -118,6 +155,17 @@ private TreeMap<Integer, Event> events; // adjacency effect list
 		}
 		//finally remove it from our plan
 		events.remove(id);
+		structure++;
+		if(order != null)
+		{
+			// removing a vertex keeps the order valid, close the gap
+			int index = order.remove(id);
+			sorted.remove(index);
+			for(int i = index; i < sorted.size(); i++)
+			{
+				order.put(sorted.get(i), i);
+			}
+		}
 		
 	}
 	
@@ -127,70 +175,214 @@ private TreeMap<Integer, Event> events; // adjacency effect list
 	}
 	/**
 	 * Method creates a map of events with its TOPO sort indices indexed by <Variable ID> mapped to a TopoSort index.
+	 * The order is cached and kept current by the add/remove methods of the plan, links made directly on an
+	 * Event are not seen.
 	 * @return HashMap<EventID,TOPOindex>
 	 */
 	public HashMap<Integer,Integer> indexedTopoTree()
 	{
-		HashMap<Integer, Integer> tree = new HashMap<Integer,Integer>();  // tree<ID,TOPO Index>
-		int index = 0; // toposort index
-		// create a causal adjacency list
-		HashMap<Integer,ArrayList<Integer>> adjlist = new HashMap<Integer,ArrayList<Integer>>();
-		LinkedList<Event> queue = new LinkedList<Event>(events.values());
-		
-		for(Event e : queue)
+		return new HashMap<Integer,Integer>(this.topo());
+	}
+	
+	/**
+	 * Installs an order computed elsewhere (PlanBuilder), the caller guarantees it is topological.
+	 * @param sorted event ids, causes first
+	 */
+	void setOrder(ArrayList<Integer> sorted)
+	{
+		HashMap<Integer,Integer> tree = new HashMap<Integer,Integer>(sorted.size() * 2);
+		for(int i = 0; i < sorted.size(); i++)
 		{
-			adjlist.put(e.getId(), new ArrayList<Integer>());
-			for(int cause : e.getCauses())
+			tree.put(sorted.get(i), i);
+		}
+		this.order = tree;
+		this.sorted = sorted;
+	}
+	
+	/**
+	 * Returns the cached order, sorting the plan if there is none.
+	 */
+	private HashMap<Integer,Integer> topo()
+	{
+		if(order == null)
+		{
+			this.sort();
+		}
+		return order;
+	}
+	
+	/**
+	 * Kahn's algorithm, O(V+E): count the unresolved causes of every event and release an event once its
+	 * count drops to zero.
+	 */
+	private void sort()
+	{
+		HashMap<Integer,Integer> tree = new HashMap<Integer,Integer>();  // tree<ID,TOPO Index>
+		ArrayList<Integer> list = new ArrayList<Integer>(events.size());
+		HashMap<Integer,Integer> indegree = new HashMap<Integer,Integer>();
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		for(Event e : events.values())
+		{
+			indegree.put(e.getId(), e.getCauses().size());
+			if(e.getCauses().isEmpty()) queue.add(e.getId());
+		}
+		int id;
+		int remaining;
+		while(!queue.isEmpty())
+		{
+			id = queue.poll();
+			tree.put(id, list.size());
+			list.add(id);
+			for(int effect : events.get(id).getEffects())
 			{
-				adjlist.get(e.getId()).add(cause);
+				remaining = indegree.get(effect) - 1;
+				indegree.put(effect, remaining);
+				if(remaining == 0) queue.add(effect);
 			}
 		}
+		if(list.size() < events.size()) throw new IllegalStateException("plan "+name+" contains a causal cycle");
+		order = tree;
+		sorted = list;
+	}
+	
+	/**
+	 * Keeps the cached order valid for a new link from -> to (Pearce-Kelly).  Only the events between the
+	 * two positions can be affected: those reachable from 'to' and those reaching 'from' are collected and
+	 * moved, causes first, into the positions they occupied.
+	 * @throws IllegalArgumentException if 'from' is reachable from 'to'
+	 */
+	private void reorder(int from, int to)
+	{
+		HashMap<Integer,Integer> ord = this.topo();
+		int lower = ord.get(to);
+		int upper = ord.get(from);
+		if(upper < lower) return; // already in order
 		
-		// now build the topo sort tree
-		Event e;
-		while(!queue.isEmpty())
+		// effects of 'to' inside the affected region
+		ArrayList<Integer> forward = new ArrayList<Integer>();
+		HashSet<Integer> seen = new HashSet<Integer>();
+		ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+		stack.push(to);
+		seen.add(to);
+		int id;
+		while(!stack.isEmpty())
 		{
-			e = queue.removeFirst();
-			
-			if(adjlist.get(e.getId()).isEmpty())
+			id = stack.pop();
+			forward.add(id);
+			for(int effect : events.get(id).getEffects())
 			{
-				tree.put(e.getId(), index);
-				index++;
-				for(int effect : events.get(e.getId()).getEffects())
-				{
-					adjlist.get(effect).remove(new Integer(e.getId()));// remove parentless key as cause to its effect
-				}
-			}else{
-				queue.addLast(e); // put at the end of the queue because it's not empty yet
+				if(effect == from) throw new IllegalArgumentException("link "+from+" -> "+to+" would create a causal cycle");
+				if(ord.get(effect) < upper && seen.add(effect)) stack.push(effect);
 			}
 		}
-		
-		return tree;
-		
+		// causes of 'from' inside the affected region
+		ArrayList<Integer> backward = new ArrayList<Integer>();
+		stack.push(from);
+		seen.add(from);
+		while(!stack.isEmpty())
+		{
+			id = stack.pop();
+			backward.add(id);
+			for(int cause : events.get(id).getCauses())
+			{
+				if(ord.get(cause) > lower && seen.add(cause)) stack.push(cause);
+			}
+		}
+		Comparator<Integer> byorder = new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return order.get(a) - order.get(b);
+			}
+		};
+		Collections.sort(forward, byorder);
+		Collections.sort(backward, byorder);
+		ArrayList<Integer> positions = new ArrayList<Integer>(forward.size() + backward.size());
+		for(int e : backward) positions.add(ord.get(e));
+		for(int e : forward) positions.add(ord.get(e));
+		Collections.sort(positions);
+		int i = 0;
+		for(int e : backward)
+		{
+			ord.put(e, positions.get(i));
+			sorted.set(positions.get(i++), e);
+		}
+		for(int e : forward)
+		{
+			ord.put(e, positions.get(i));
+			sorted.set(positions.get(i++), e);
+		}
 	}
 	/**
-	 * Method creates a DBN using Event objects from the plan.
+	 * Method creates a DBN using Event objects from the plan, and its compiled form (see getCompiledNetwork).
+	 * The previous build is reused: a node whose event did not change is returned again, a node whose
+	 * event changed but not its causes, elicitations or leak shares the old CPT, and topo indices are
+	 * only recomputed if events or links were added or removed in between.
 	 * @return DBNode[] 
 	 */
 	public Node[] buildDBN(int steps)
 	{
-		nodes = new Node[events.size()];
-		HashMap<Integer,Integer> tpi = this.indexedTopoTree();
+		HashMap<Integer,Integer> tpi = this.topo();
+		Node[] previous = nodes;
+		boolean remap = previous == null || built != structure;
+		HashMap<Integer,Node> byid = null;
+		if(remap && previous != null)
+		{
+			byid = new HashMap<Integer,Node>(previous.length * 2);
+			for(Node n : previous)
+			{
+				byid.put(n.getId(), n);
+			}
+		}
+		Node[] result = new Node[events.size()];
+		boolean changed = remap;
 		int[] topocauses;
-		Event e;
-		for(int ei : events.keySet())
+		int index;
+		Node old;
+		for(Event e : events.values())
 		{
-			e = events.get(ei);
-			topocauses = new int[e.getCauses().size()];
-			int iter = 0;
-			for(int c : e.getCauses())
+			index = tpi.get(e.getId());
+			if(remap)
+			{
+				topocauses = new int[e.getCauses().size()];
+				int iter = 0;
+				for(int c : e.getCauses())
+				{
+					topocauses[iter] = tpi.get(c);
+					iter++;
+				}
+				old = (byid == null) ? null : byid.get(e.getId());
+			}else{
+				old = previous[index];
+				topocauses = old.getCauses();
+			}
+			if(old != null && old.isCurrent(e, steps) && (!remap || Arrays.equals(old.getCauses(), topocauses)))
 			{
-				topocauses[iter] = tpi.get(c);
-				iter++;
+				result[index] = old;
+				continue;
+			}
+			changed = true;
+			if(old != null && old.hasCurrentCPT(e))
+			{
+				result[index] = new Node(e, topocauses, steps, old);
+			}else{
+				result[index] = new Node(e, topocauses, steps);
 			}
-			nodes[tpi.get(ei)] = new Node(e,topocauses, steps);
 		}
-		return nodes;
+		nodes = result;
+		built = structure;
+		if(changed || network == null)
+		{
+			network = new CompiledNetwork(result);
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the flat form of the DBN created by the last buildDBN call, null before the first one.
+	 * @return CompiledNetwork
+	 */
+	public CompiledNetwork getCompiledNetwork()
+	{
+		return network;
 	}
 	
 	public String lookupEventName(int id)
@@ -224,7 +416,7 @@ private TreeMap<Integer, Event> events; // adjacency effect list
 	{
 		StringBuffer buf = new StringBuffer();
 		// first get the toposorted pairs of <ID,ORDER>
-		HashMap<Integer,Integer> topopairs = this.indexedTopoTree();
+		HashMap<Integer,Integer> topopairs = this.topo();
 		Event e;
 		for(int id : topopairs.keySet())
 		{
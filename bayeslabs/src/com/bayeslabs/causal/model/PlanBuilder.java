@@ -0,0 +1,267 @@
+package com.bayeslabs.causal.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Builds a large Plan in one pass.  Events, links and elicitations are only recorded until build(), which
+ * then validates acyclicity once (Kahn), hands every event its complete cause list at once so the
+ * elicitation indices are laid out a single time, and installs the topological order in the plan.  The
+ * cost is O(V + E + elicitations) apart from the plan's own TreeMap, where adding the same links one by
+ * one with Plan.addLink re-keys an event's elicitations for every cause.
+ * <p>
+ * Causes are ordered as the links were added, exactly as Plan.addLink would order them, so Power Set
+ * indices given to setElicitation mean the same thing: the first cause added is the high order bit.
+ */
+public class PlanBuilder {
+
+	private final String name;
+	private final HashMap<Integer,Integer> dense = new HashMap<Integer,Integer>(); // <ID, insertion index>
+	private int[] ids = new int[16];
+	private String[] names = new String[16];
+	private float[] leaks = new float[16];
+	private float[] continuations = new float[16];
+	private int events = 0;
+
+	private int[] from = new int[16]; // insertion indices of link ends
+	private int[] to = new int[16];
+	private int links = 0;
+
+	private int[] elicitedevent = new int[16];
+	private int[] elicitedindex = new int[16];
+	private float[] elicitedprob = new float[16];
+	private int elicitations = 0;
+
+	public PlanBuilder(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Adds an event, ids must be unique.
+	 */
+	public PlanBuilder addEvent(int id, String name)
+	{
+		if(dense.containsKey(id)) throw new IllegalArgumentException("event "+id+" was already added");
+		if(events == ids.length)
+		{
+			int capacity = events << 1;
+			ids = Arrays.copyOf(ids, capacity);
+			names = Arrays.copyOf(names, capacity);
+			leaks = Arrays.copyOf(leaks, capacity);
+			continuations = Arrays.copyOf(continuations, capacity);
+		}
+		dense.put(id, events);
+		ids[events] = id;
+		names[events] = name;
+		leaks[events] = 0f;
+		continuations[events++] = 1.0f;
+		return this;
+	}
+
+	/**
+	 * Adds events named after their ids.
+	 */
+	public PlanBuilder addEvents(int[] ids)
+	{
+		for(int id : ids)
+		{
+			this.addEvent(id, id+"");
+		}
+		return this;
+	}
+
+	public PlanBuilder setLeak(int event, float leak)
+	{
+		leaks[this.index(event)] = leak;
+		return this;
+	}
+
+	public PlanBuilder setContinuation(int event, float probability)
+	{
+		continuations[this.index(event)] = probability;
+		return this;
+	}
+
+	/**
+	 * Records a causal link, both events must have been added.  Cycles are reported by build().
+	 */
+	public PlanBuilder addLink(int from, int to)
+	{
+		if(from == to) throw new IllegalArgumentException("event "+from+" cannot cause itself");
+		if(links == this.from.length)
+		{
+			this.from = Arrays.copyOf(this.from, links << 1);
+			this.to = Arrays.copyOf(this.to, links << 1);
+		}
+		this.from[links] = this.index(from);
+		this.to[links++] = this.index(to);
+		return this;
+	}
+
+	/**
+	 * Records links from[i] -> to[i].
+	 */
+	public PlanBuilder addLinks(int[] from, int[] to)
+	{
+		if(from.length != to.length) throw new IllegalArgumentException(from.length+" causes for "+to.length+" effects");
+		for(int i = 0; i < from.length; i++)
+		{
+			this.addLink(from[i], to[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * Records an elicited probability, see Plan.setElicitation.  The index refers to the final cause order.
+	 */
+	public PlanBuilder setElicitation(int event, int index, float probability)
+	{
+		if(elicitations == elicitedevent.length)
+		{
+			int capacity = elicitations << 1;
+			elicitedevent = Arrays.copyOf(elicitedevent, capacity);
+			elicitedindex = Arrays.copyOf(elicitedindex, capacity);
+			elicitedprob = Arrays.copyOf(elicitedprob, capacity);
+		}
+		elicitedevent[elicitations] = this.index(event);
+		elicitedindex[elicitations] = index;
+		elicitedprob[elicitations++] = probability;
+		return this;
+	}
+
+	/**
+	 * Creates the plan with its topological order already cached.
+	 * @throws IllegalArgumentException if the links contain a causal cycle
+	 */
+	public Plan build()
+	{
+		// causes and effects of every event in link order (CSR)
+		int[] causestart = new int[events + 1];
+		int[] effectstart = new int[events + 1];
+		for(int l = 0; l < links; l++)
+		{
+			causestart[to[l] + 1]++;
+			effectstart[from[l] + 1]++;
+		}
+		for(int e = 0; e < events; e++)
+		{
+			causestart[e + 1] += causestart[e];
+			effectstart[e + 1] += effectstart[e];
+		}
+		int[] causes = new int[links];
+		int[] effects = new int[links];
+		int[] cfill = Arrays.copyOf(causestart, events);
+		int[] efill = Arrays.copyOf(effectstart, events);
+		for(int l = 0; l < links; l++)
+		{
+			causes[cfill[to[l]]++] = from[l];
+			effects[efill[from[l]]++] = to[l];
+		}
+
+		int[] order = this.sort(causestart, effectstart, effects);
+
+		// elicitations grouped by event, keeping the order they were given in, then by index so every event
+		// merges its slice into its elicitations in one pass
+		int[] elicitstart = new int[events + 1];
+		for(int i = 0; i < elicitations; i++)
+		{
+			elicitstart[elicitedevent[i] + 1]++;
+		}
+		for(int e = 0; e < events; e++)
+		{
+			elicitstart[e + 1] += elicitstart[e];
+		}
+		int[] indices = new int[elicitations];
+		float[] probabilities = new float[elicitations];
+		int[] ifill = Arrays.copyOf(elicitstart, events);
+		for(int i = 0; i < elicitations; i++)
+		{
+			indices[ifill[elicitedevent[i]]] = elicitedindex[i];
+			probabilities[ifill[elicitedevent[i]]++] = elicitedprob[i];
+		}
+		for(int e = 0; e < events; e++)
+		{
+			ElicitationMap.sort(indices, probabilities, elicitstart[e], elicitstart[e + 1]);
+		}
+
+		Plan plan = new Plan(name);
+		Event event;
+		int max = 0;
+		for(int e = 0; e < events; e++)
+		{
+			event = new Event(ids[e], names[e]);
+			ArrayList<Integer> list = new ArrayList<Integer>(causestart[e + 1] - causestart[e]);
+			for(int i = causestart[e]; i < causestart[e + 1]; i++)
+			{
+				list.add(ids[causes[i]]);
+			}
+			event.setCauses(list);
+			for(int i = effectstart[e]; i < effectstart[e + 1]; i++)
+			{
+				event.addEffect(ids[effects[i]]);
+			}
+			event.setLeak(leaks[e]);
+			event.setContinuation(continuations[e]);
+			if(elicitstart[e + 1] > elicitstart[e])
+			{
+				int count = elicitstart[e + 1] - elicitstart[e];
+				event.addElicitations(Arrays.copyOfRange(indices, elicitstart[e], elicitstart[e + 1]), Arrays.copyOfRange(probabilities, elicitstart[e], elicitstart[e + 1]), count);
+			}
+			plan.addEvent(event);
+			max = Math.max(max, ids[e]);
+		}
+		ArrayList<Integer> sorted = new ArrayList<Integer>(events);
+		for(int e : order)
+		{
+			sorted.add(ids[e]);
+		}
+		plan.setOrder(sorted);
+		plan.setCounter(max);
+		return plan;
+	}
+
+	/**
+	 * Builds the plan and its DBN, see Plan.buildDBN.
+	 * @return topo sorted nodes
+	 */
+	public Node[] buildDBN(int steps)
+	{
+		return this.build().buildDBN(steps);
+	}
+
+	/**
+	 * Kahn's algorithm on insertion indices.
+	 * @return insertion indices in topological order
+	 */
+	private int[] sort(int[] causestart, int[] effectstart, int[] effects)
+	{
+		int[] indegree = new int[events];
+		int[] queue = new int[events];
+		int tail = 0;
+		for(int e = 0; e < events; e++)
+		{
+			indegree[e] = causestart[e + 1] - causestart[e];
+			if(indegree[e] == 0) queue[tail++] = e;
+		}
+		int e;
+		for(int head = 0; head < tail; head++)
+		{
+			e = queue[head];
+			for(int i = effectstart[e]; i < effectstart[e + 1]; i++)
+			{
+				if(--indegree[effects[i]] == 0) queue[tail++] = effects[i];
+			}
+		}
+		if(tail < events) throw new IllegalArgumentException("plan "+name+" contains a causal cycle");
+		return queue;
+	}
+
+	private int index(int event)
+	{
+		Integer index = dense.get(event);
+		if(index == null) throw new IllegalArgumentException("unknown event "+event);
+		return index;
+	}
+}
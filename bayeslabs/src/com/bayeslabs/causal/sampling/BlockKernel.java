@@ -0,0 +1,37 @@
+package com.bayeslabs.causal.sampling;
+
+import com.bayeslabs.causal.model.CompiledNetwork;
+
+/**
+ * Data parallel primitives used to sample one node for a block of 64 particles at once.  The block is
+ * bit sliced: the state of a node for all particles of the block is one long, bit l being particle l.
+ * BlockKernels.get() returns a SIMD implementation when one is available and a scalar one otherwise.
+ */
+public interface BlockKernel {
+
+	/**
+	 * Number of particles in a block, the bits of a long.
+	 */
+	public static final int LANES = 64;
+
+	/**
+	 * Builds the CPT index of every particle of the block, the first cause is the high order bit.  Only
+	 * valid for nodes with at most 31 causes.
+	 * @param columns bit sliced node states of the block, by topo sort index
+	 * @param network network the node belongs to
+	 * @param node topo sort index
+	 * @param index receives LANES indices
+	 */
+	public void index(long[] columns, CompiledNetwork network, int node, int[] index);
+
+	/**
+	 * Returns a mask with bit l set when probs[l] >= uniforms[l], for l < count.
+	 */
+	public long compare(float[] probs, float[] uniforms, int count);
+
+	/**
+	 * Returns a mask with bit l set when prob >= uniforms[l], for l < count.
+	 */
+	public long compare(float prob, float[] uniforms, int count);
+
+}
@@ -0,0 +1,106 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import com.bayeslabs.causal.model.CompiledNetwork;
+
+/**
+ * Locates the BlockKernel to use.  Implementations are registered as services (the bayeslabs-vector
+ * module provides one on the Vector API); the first one that loads is used.  When none is on the class
+ * path, or the JVM was started without the incubator module, the scalar kernel is used.
+ */
+public final class BlockKernels {
+
+	private static BlockKernel kernel;
+
+	private BlockKernels()
+	{
+	}
+
+	public static synchronized BlockKernel get()
+	{
+		if(kernel == null)
+		{
+			kernel = load();
+		}
+		return kernel;
+	}
+
+	/**
+	 * Returns the portable implementation.
+	 */
+	public static BlockKernel scalar()
+	{
+		return new Scalar();
+	}
+
+	private static BlockKernel load()
+	{
+		try{
+			Iterator<BlockKernel> found = ServiceLoader.load(BlockKernel.class).iterator();
+			while(found.hasNext())
+			{
+				try{
+					return found.next();
+				}catch(ServiceConfigurationError e){
+					// provider could not be created, try the next one
+				}catch(LinkageError e){
+					// e.g. jdk.incubator.vector is not resolved in this JVM
+				}
+			}
+		}catch(ServiceConfigurationError e){
+			// broken provider configuration, fall back
+		}
+		return new Scalar();
+	}
+
+	/**
+	 * One lane at a time, the loops are simple enough for the JIT to unroll.
+	 */
+	private static final class Scalar implements BlockKernel
+	{
+		@Override
+		public void index(long[] columns, CompiledNetwork network, int node, int[] index)
+		{
+			int start = network.getParentStart(node);
+			int end = network.getParentEnd(node);
+			long word;
+			for(int lane = 0; lane < LANES; lane++)
+			{
+				index[lane] = 0;
+			}
+			for(int i = start; i < end; i++)
+			{
+				word = columns[network.getParent(i)];
+				for(int lane = 0; lane < LANES; lane++)
+				{
+					index[lane] = (index[lane] << 1) | (int)((word >>> lane) & 1L);
+				}
+			}
+		}
+
+		@Override
+		public long compare(float[] probs, float[] uniforms, int count)
+		{
+			long mask = 0;
+			for(int lane = 0; lane < count; lane++)
+			{
+				if(probs[lane] >= uniforms[lane]) mask |= 1L << lane;
+			}
+			return mask;
+		}
+
+		@Override
+		public long compare(float prob, float[] uniforms, int count)
+		{
+			long mask = 0;
+			for(int lane = 0; lane < count; lane++)
+			{
+				if(prob >= uniforms[lane]) mask |= 1L << lane;
+			}
+			return mask;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Observations of a topo sorted network compiled per time step into sparse lists of (topo index, value),
+ * sorted by topo index.  A sampler fetches the evidence of a step once (fill) and applies it to all
+ * particles instead of probing every node's observation map for every particle.  Evidence can be changed
+ * one entry at a time or in bulk from columns of nodes, times and values; times are not bounded by the
+ * nodes' horizon so streaming sessions can observe past it.
+ */
+public class EvidenceIndex {
+
+	private final int size; // nodes in the network
+	private int[][] nodes = new int[0][]; // per time, topo indices ascending
+	private float[][] values = new float[0][];
+	private int[] counts = new int[0];
+
+	/**
+	 * Creates an index without evidence for a network of size nodes.
+	 */
+	public EvidenceIndex(int size)
+	{
+		this.size = size;
+	}
+
+	/**
+	 * Compiles the observations of the nodes, e.g. from Plan.buildDBN.
+	 */
+	public EvidenceIndex(Node[] nodes)
+	{
+		this(nodes.length);
+		int horizon = 0;
+		for(Node node : nodes)
+		{
+			for(int time : node.getObservations().keySet())
+			{
+				horizon = Math.max(horizon, time + 1);
+			}
+		}
+		this.ensure(horizon);
+		for(int n = 0; n < nodes.length; n++)
+		{
+			for(Map.Entry<Integer,Float> observation : nodes[n].getObservations().entrySet())
+			{
+				int time = observation.getKey();
+				if(time < 0) continue;
+				// nodes are visited in topo order, so every list stays sorted
+				this.append(time, n, observation.getValue());
+			}
+		}
+	}
+
+	private EvidenceIndex(EvidenceIndex source)
+	{
+		this.size = source.size;
+		this.counts = source.counts.clone();
+		this.nodes = new int[counts.length][];
+		this.values = new float[counts.length][];
+		for(int t = 0; t < counts.length; t++)
+		{
+			if(source.nodes[t] == null) continue;
+			nodes[t] = Arrays.copyOf(source.nodes[t], counts[t]);
+			values[t] = Arrays.copyOf(source.values[t], counts[t]);
+		}
+	}
+
+	/**
+	 * Returns an independent copy.
+	 */
+	public EvidenceIndex copy()
+	{
+		return new EvidenceIndex(this);
+	}
+
+	/**
+	 * Returns the number of nodes of the network.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the number of observed nodes at a time.
+	 */
+	public int count(int time)
+	{
+		return (time >= 0 && time < counts.length) ? counts[time] : 0;
+	}
+
+	/**
+	 * Returns the topo index of the i-th observation at a time, observations are sorted by topo index.
+	 */
+	public int getNode(int time, int i)
+	{
+		return nodes[time][i];
+	}
+
+	public float getValue(int time, int i)
+	{
+		return values[time][i];
+	}
+
+	/**
+	 * Returns the observation of a node at a time, NaN if there is none.
+	 */
+	public float get(int node, int time)
+	{
+		if(this.count(time) == 0) return Float.NaN;
+		int i = Arrays.binarySearch(nodes[time], 0, counts[time], node);
+		return (i >= 0) ? values[time][i] : Float.NaN;
+	}
+
+	/**
+	 * Returns the earliest time step at which this index and other hold different evidence,
+	 * Integer.MAX_VALUE if they hold the same.
+	 */
+	int firstDifference(EvidenceIndex other)
+	{
+		int horizon = Math.max(counts.length, other.counts.length);
+		for(int t = 0; t < horizon; t++)
+		{
+			int count = this.count(t);
+			if(count != other.count(t)) return t;
+			for(int i = 0; i < count; i++)
+			{
+				if(nodes[t][i] != other.nodes[t][i] || values[t][i] != other.values[t][i]) return t;
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Writes the evidence of a time step into a dense array indexed by topo index, NaN where a node is
+	 * not observed.
+	 */
+	public void fill(int time, float[] dense)
+	{
+		Arrays.fill(dense, Float.NaN);
+		for(int i = 0, count = this.count(time); i < count; i++)
+		{
+			dense[nodes[time][i]] = values[time][i];
+		}
+	}
+
+	/**
+	 * Returns the last time before horizon at which each node is observed, -1 for none.
+	 */
+	public int[] lastObserved(int horizon)
+	{
+		int[] last = new int[size];
+		Arrays.fill(last, -1);
+		for(int t = 0, end = Math.min(horizon, counts.length); t < end; t++)
+		{
+			for(int i = 0; i < counts[t]; i++)
+			{
+				last[nodes[t][i]] = t;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Adds or replaces the observation of a node at a time.
+	 */
+	public void observe(int node, int time, float value)
+	{
+		this.check(node, time);
+		this.ensure(time + 1);
+		int count = counts[time];
+		int i = (count == 0) ? -1 : Arrays.binarySearch(nodes[time], 0, count, node);
+		if(i >= 0)
+		{
+			values[time][i] = value;
+			return;
+		}
+		i = -i - 1;
+		this.reserve(time, count + 1);
+		System.arraycopy(nodes[time], i, nodes[time], i + 1, count - i);
+		System.arraycopy(values[time], i, values[time], i + 1, count - i);
+		nodes[time][i] = node;
+		values[time][i] = value;
+		counts[time]++;
+	}
+
+	/**
+	 * Adds or replaces many observations at once, observation k is values[k] for node nodes[k] at time
+	 * times[k].  Every affected time step is merged once, a later entry wins over an earlier one for the
+	 * same node and time.
+	 * @param nodes topo indices
+	 * @param times time steps
+	 * @param values observed probabilities
+	 */
+	public void observe(int[] nodes, int[] times, float[] values)
+	{
+		if(nodes.length != times.length || nodes.length != values.length)
+			throw new IllegalArgumentException(nodes.length+" nodes, "+times.length+" times and "+values.length+" values");
+		int horizon = 0;
+		for(int k = 0; k < nodes.length; k++)
+		{
+			this.check(nodes[k], times[k]);
+			horizon = Math.max(horizon, times[k] + 1);
+		}
+		this.ensure(horizon);
+		// group the batch by time (counting sort), keeping the batch order within a time
+		int[] start = new int[horizon + 1];
+		for(int time : times)
+		{
+			start[time + 1]++;
+		}
+		for(int t = 0; t < horizon; t++)
+		{
+			start[t + 1] += start[t];
+		}
+		int[] order = new int[nodes.length];
+		int[] fill = Arrays.copyOf(start, horizon);
+		for(int k = 0; k < nodes.length; k++)
+		{
+			order[fill[times[k]]++] = k;
+		}
+		long[] keys = new long[nodes.length];
+		for(int t = 0; t < horizon; t++)
+		{
+			int count = start[t + 1] - start[t];
+			if(count == 0) continue;
+			// sort the entries of this time by node, then by batch position
+			for(int j = 0; j < count; j++)
+			{
+				int k = order[start[t] + j];
+				keys[j] = ((long)nodes[k] << 32) | k;
+			}
+			Arrays.sort(keys, 0, count);
+			this.merge(t, keys, count, values);
+		}
+	}
+
+	/**
+	 * Removes the observation of a node at a time, if any.
+	 */
+	public void clear(int node, int time)
+	{
+		int count = this.count(time);
+		if(count == 0) return;
+		int i = Arrays.binarySearch(nodes[time], 0, count, node);
+		if(i < 0) return;
+		System.arraycopy(nodes[time], i + 1, nodes[time], i, count - i - 1);
+		System.arraycopy(values[time], i + 1, values[time], i, count - i - 1);
+		counts[time]--;
+	}
+
+	/**
+	 * Removes all observations of a time step.
+	 */
+	public void clear(int time)
+	{
+		if(time < 0 || time >= counts.length) return;
+		nodes[time] = null;
+		values[time] = null;
+		counts[time] = 0;
+	}
+
+	/**
+	 * Merges sorted batch entries (node << 32 | batch position) into the list of a time step.
+	 */
+	private void merge(int time, long[] keys, int count, float[] batch)
+	{
+		int existing = counts[time];
+		int[] mergednodes = new int[existing + count];
+		float[] mergedvalues = new float[existing + count];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		int node;
+		while(i < existing || j < count)
+		{
+			if(j == count || (i < existing && nodes[time][i] < (int)(keys[j] >>> 32)))
+			{
+				mergednodes[size] = nodes[time][i];
+				mergedvalues[size++] = values[time][i++];
+				continue;
+			}
+			node = (int)(keys[j] >>> 32);
+			if(i < existing && nodes[time][i] == node) i++; // replaced by the batch
+			// the last batch entry for this node wins
+			while(j + 1 < count && (int)(keys[j + 1] >>> 32) == node) j++;
+			mergednodes[size] = node;
+			mergedvalues[size++] = batch[(int)keys[j]];
+			j++;
+		}
+		nodes[time] = mergednodes;
+		values[time] = mergedvalues;
+		counts[time] = size;
+	}
+
+	private void append(int time, int node, float value)
+	{
+		this.reserve(time, counts[time] + 1);
+		nodes[time][counts[time]] = node;
+		values[time][counts[time]++] = value;
+	}
+
+	/**
+	 * Makes the lists of a time step hold at least capacity entries.
+	 */
+	private void reserve(int time, int capacity)
+	{
+		if(nodes[time] == null)
+		{
+			nodes[time] = new int[Math.max(4, capacity)];
+			values[time] = new float[Math.max(4, capacity)];
+		}else if(nodes[time].length < capacity)
+		{
+			int grown = Math.max(capacity, nodes[time].length << 1);
+			nodes[time] = Arrays.copyOf(nodes[time], grown);
+			values[time] = Arrays.copyOf(values[time], grown);
+		}
+	}
+
+	/**
+	 * Makes room for time steps [0, horizon).
+	 */
+	private void ensure(int horizon)
+	{
+		if(horizon <= counts.length) return;
+		int grown = Math.max(horizon, counts.length << 1);
+		nodes = Arrays.copyOf(nodes, grown);
+		values = Arrays.copyOf(values, grown);
+		counts = Arrays.copyOf(counts, grown);
+	}
+
+	private void check(int node, int time)
+	{
+		if(node < 0 || node >= size) throw new IllegalArgumentException("unknown node "+node);
+		if(time < 0) throw new IllegalArgumentException("negative time "+time);
+	}
+}
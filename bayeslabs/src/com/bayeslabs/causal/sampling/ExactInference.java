@@ -0,0 +1,214 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Arrays;
+
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Exact counterpart of Prediction for small plans.  Every time slice is solved by variable elimination
+ * along the topo sort order: nodes are multiplied into a joint table over the current frontier (the
+ * nodes that still have an unprocessed effect) and summed out as soon as their last effect has been
+ * added, so a slice costs O(N * 2^w) where w is the largest frontier.  Observed nodes and the root
+ * transition (continuation with leak) are handled exactly as the samplers do.
+ */
+public class ExactInference implements Sampler {
+
+	/**
+	 * Largest frontier this engine accepts, the joint table then holds 2^25 doubles.
+	 */
+	public static final int MAX_WIDTH = 24;
+
+	private Node[] nodes;
+
+	private double[] table;
+	private double[] next;
+	private int[] vars; // frontier position -> topo index
+	private int[] position; // topo index -> frontier position
+	private int width;
+
+	public ExactInference(Node[] nodes)
+	{
+		this.nodes = nodes;
+		int frontier = frontierWidth(nodes);
+		if(frontier > MAX_WIDTH)
+			throw new IllegalArgumentException("frontier width "+frontier+" exceeds "+MAX_WIDTH+", use a sampler");
+	}
+
+	@Override
+	public void run()
+	{
+		if(nodes.length < 1)return;
+		int frontier = frontierWidth(nodes);
+		table = new double[1 << frontier];
+		next = new double[1 << frontier];
+		vars = new int[frontier];
+		position = new int[nodes.length];
+
+		for(int time = 0; time < nodes[0].getSteps(); time++)
+		{
+			slice(time);
+		}
+		table = null;
+		next = null;
+	}
+
+	/**
+	 * Computes the exact marginals of one time slice.
+	 */
+	private void slice(int time)
+	{
+		int[] last = lastEffects(nodes, time);
+		table[0] = 1.0;
+		width = 0;
+		double q;
+		double marginal;
+		for(int n = 0; n < nodes.length; n++)
+		{
+			int size = 1 << width;
+			int top = size; // bit of the new node
+			boolean conditional = !nodes[n].isRoot() && !nodes[n].hasObservation(time);
+			q = conditional ? 0.0 : constant(n, time);
+			int[] causes = nodes[n].getCauses();
+			marginal = 0.0;
+			for(int a = 0; a < size; a++)
+			{
+				if(conditional)
+				{
+					int index = 0;
+					for(int cause : causes)
+					{
+						index = (index << 1) | ((a >>> position[cause]) & 1);
+					}
+					q = nodes[n].getConditional(index);
+				}
+				next[a] = table[a] * (1.0 - q);
+				next[a | top] = table[a] * q;
+				marginal += next[a | top];
+			}
+			nodes[n].setMarginal(time, (float)marginal);
+			swap();
+			position[n] = width;
+			vars[width++] = n;
+
+			// sum out everything that has no effect left to process
+			for(int i = width - 1; i >= 0; i--)
+			{
+				if(last[vars[i]] <= n)
+				{
+					eliminate(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Probability of a node that does not depend on its causes in this slice: observed nodes and roots.
+	 */
+	private float constant(int n, int time)
+	{
+		if(nodes[n].hasObservation(time))
+		{
+			return nodes[n].getObservationAt(time);
+		}
+		if(time == 0)
+		{
+			return nodes[n].getConditional(0);
+		}
+		// transition from t - 1 (NOR with Leak), same as the samplers
+		return 1.0f - ((1.0f -  (nodes[n].getMarginal(time - 1) * nodes[n].getContinuation())) * (1.0f - nodes[n].getConditional(0)));
+	}
+
+	/**
+	 * Sums the variable at frontier position i out of the table.
+	 */
+	private void eliminate(int i)
+	{
+		int size = 1 << width;
+		int low = (1 << i) - 1;
+		Arrays.fill(next, 0, size >>> 1, 0.0);
+		for(int a = 0; a < size; a++)
+		{
+			next[((a >>> (i + 1)) << i) | (a & low)] += table[a];
+		}
+		swap();
+		width--;
+		for(int j = i; j < width; j++)
+		{
+			vars[j] = vars[j + 1];
+			position[vars[j]] = j;
+		}
+	}
+
+	private void swap()
+	{
+		double[] temp = table;
+		table = next;
+		next = temp;
+	}
+
+	/**
+	 * Returns, for every node, the topo index of the last node that reads it in the given slice (its own
+	 * index if none).  Observed nodes do not read their causes.
+	 */
+	private static int[] lastEffects(Node[] nodes, int time)
+	{
+		int[] last = new int[nodes.length];
+		for(int n = 0; n < nodes.length; n++)
+		{
+			last[n] = n;
+			if(time >= 0 && nodes[n].hasObservation(time)) continue;
+			for(int cause : nodes[n].getCauses())
+			{
+				last[cause] = n; // n only grows, so the last write wins
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Returns the largest number of nodes held in the joint table at once when the plan is eliminated in
+	 * topo sort order without evidence.  This is the pathwidth of that order plus one and an upper bound
+	 * on the treewidth plus one.
+	 */
+	public static int frontierWidth(Node[] nodes)
+	{
+		int[] last = lastEffects(nodes, -1);
+		int[] ending = new int[nodes.length]; // number of nodes whose last effect is n
+		for(int n = 0; n < nodes.length; n++)
+		{
+			ending[last[n]]++;
+		}
+		int alive = 0;
+		int widest = 0;
+		for(int n = 0; n < nodes.length; n++)
+		{
+			alive++;
+			widest = Math.max(widest, alive);
+			alive -= ending[n];
+		}
+		return widest;
+	}
+
+	/**
+	 * Estimated number of table entry updates per time slice, each one reads the causes of its node.
+	 */
+	public static double estimateCost(Node[] nodes)
+	{
+		int[] last = lastEffects(nodes, -1);
+		int[] ending = new int[nodes.length];
+		for(int n = 0; n < nodes.length; n++)
+		{
+			ending[last[n]]++;
+		}
+		double cost = 0;
+		int alive = 0;
+		for(int n = 0; n < nodes.length; n++)
+		{
+			cost += Math.pow(2, alive) * (nodes[n].getCauses().length + 1) + Math.pow(2, alive + 1);
+			alive++;
+			alive -= ending[n];
+		}
+		return cost;
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.HashMap;
+
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Stateful, online use of a ParticleFilter.  Instead of replaying the whole horizon, the session keeps
+ * the particle population and the current marginals in memory and advances one time step per step()
+ * call, so every update costs O(particles x nodes) however long the session has been running.  New
+ * evidence is added with observe() before the step it belongs to is filtered.  Marginals of steps inside
+ * the nodes' horizon are also written to the nodes.  Obtain one from ParticleFilter.openSession().
+ */
+public class FilterSession {
+
+	private final ParticleFilter filter;
+	private final HashMap<Integer,Integer> topo = new HashMap<Integer,Integer>(); // <Event ID,TOPO index>
+	private int time = 0;
+	private boolean closed = false;
+
+	FilterSession(ParticleFilter filter)
+	{
+		this.filter = filter;
+		Node[] nodes = filter.network().getNodes();
+		for(int n = 0; n < nodes.length; n++)
+		{
+			topo.put(nodes[n].getId(), n);
+		}
+	}
+
+	/**
+	 * Adds (or replaces) evidence for a future time step.
+	 * @param nodeId event id of the node
+	 * @param time time step, must be after the current one
+	 * @param value observed probability
+	 */
+	public void observe(int nodeId, int time, float value)
+	{
+		if(time <= this.time) throw new IllegalArgumentException("time "+time+" has already been filtered, current time is "+this.time);
+		filter.observations.observe(this.lookup(nodeId), time, value);
+	}
+
+	/**
+	 * Filters the next time step.
+	 * @return the new current time
+	 */
+	public int step()
+	{
+		if(closed) throw new IllegalStateException("session is closed");
+		time++;
+		filter.advance(time);
+		filter.observations.clear(time); // consumed
+		return time;
+	}
+
+	/**
+	 * Returns the last filtered time step, 0 right after the session is opened.
+	 */
+	public int getTime()
+	{
+		return time;
+	}
+
+	/**
+	 * Returns the marginal of a node at the current time.
+	 * @param nodeId event id of the node
+	 */
+	public float getMarginal(int nodeId)
+	{
+		return filter.marginal[this.lookup(nodeId)];
+	}
+
+	/**
+	 * Returns a copy of the current marginals, indexed by topo sort index.
+	 */
+	public float[] getMarginals()
+	{
+		return filter.marginal.clone();
+	}
+
+	/**
+	 * Releases the filter's worker pool, the session cannot step afterwards.
+	 */
+	public void close()
+	{
+		closed = true;
+		filter.finish();
+	}
+
+	private int lookup(int nodeId)
+	{
+		Integer n = topo.get(nodeId);
+		if(n == null) throw new IllegalArgumentException("unknown node "+nodeId);
+		return n;
+	}
+}
@@ -0,0 +1,538 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.bayeslabs.causal.model.CompiledNetwork;
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Markov chain Monte Carlo for diagnostic queries, where evidence on deep effects leaves the weights of
+ * ParticleFilter almost all zero.  Gibbs sampling runs over the unrolled network, one variable per node
+ * and time step.  A scan visits the time steps in order and the nodes in topo order, and redraws every
+ * unobserved variable from its Markov blanket conditional. That conditional is the product of:
+ * <ul>
+ * <li>the node's own CPT entry, or the root transition (continuation with leak) from the previous step;</li>
+ * <li>the CPT entries of its effects in the same step;</li>
+ * <li>for a root, the transition to its own next step.</li>
+ * </ul>
+ * Observations of 0 or 1 fix the variable.  Other values act as virtual evidence, a likelihood of value
+ * for true and 1 - value for false.  The CPT index of every effect is kept up to date as its causes
+ * flip, so a draw costs O(effects).
+ * <p>
+ * Several chains run in parallel, one fork-join task each, from forward samples of the prior.  After the
+ * burn-in every thinning-th scan is kept.  A marginal is the mean of the conditional probabilities the
+ * kept scans drew the variable with (Rao-Blackwellised), not of the drawn values.  The run reports the
+ * potential scale reduction (R-hat) between the chains and the effective sample size from batch means.
+ * With a convergence target the run length is doubled until the target is met.
+ */
+public class GibbsSampler implements Sampler {
+
+	private static final int BATCHES = 20; // batch means per chain for the effective sample size, even
+
+	private final Node[] nodes;
+	private final CompiledNetwork network;
+	private final int number; // scans kept per chain in the first round
+	private final int size;
+	private int chains = 4;
+	private int burnin = 100;
+	private int thinning = 1;
+	private float rhat = 0f; // convergence targets, 0 for none
+	private float ess = 0f;
+	private int limit = 0; // most scans kept per chain when a target is set
+	private RandomSource random; // null for SplitRandom
+	private long seed;
+	private boolean seeded = false;
+
+	private int steps;
+	private int[] childstart; // effects of node n are child[childstart[n]..childstart[n+1])
+	private int[] child;
+	private long[] childbit; // bit of node n in the CPT index of the effect
+	private float[][] evidence; // [time][topo index], NaN if not observed
+	private float[][] rhats; // [topo index][time] of the last run
+	private float[][] sizes;
+	private int used;
+
+	/**
+	 * @param nodes topo sorted nodes from Plan.buildDBN
+	 * @param numberofsamples scans kept per chain, rounded up to a multiple of 20
+	 */
+	public GibbsSampler(Node[] nodes, int numberofsamples)
+	{
+		this(new CompiledNetwork(nodes), numberofsamples);
+	}
+
+	/**
+	 * Gibbs sampling over a compiled network, see GibbsSampler(Node[], int).
+	 */
+	public GibbsSampler(CompiledNetwork network, int numberofsamples)
+	{
+		if(numberofsamples < 1) throw new IllegalArgumentException("numberofsamples must be at least 1: "+numberofsamples);
+		this.network = network;
+		this.nodes = network.getNodes();
+		this.size = nodes.length;
+		this.number = numberofsamples;
+	}
+
+	/**
+	 * Sets the number of chains, 4 by default.  R-hat needs at least 2.
+	 */
+	public void setChains(int chains)
+	{
+		if(chains < 1) throw new IllegalArgumentException("chains must be at least 1: "+chains);
+		this.chains = chains;
+	}
+
+	/**
+	 * Sets the scans every chain discards before keeping any, 100 by default.
+	 */
+	public void setBurnIn(int scans)
+	{
+		if(scans < 0) throw new IllegalArgumentException("negative burn-in "+scans);
+		this.burnin = scans;
+	}
+
+	/**
+	 * Keeps every thinning-th scan after the burn-in, 1 by default.
+	 */
+	public void setThinning(int thinning)
+	{
+		if(thinning < 1) throw new IllegalArgumentException("thinning must be at least 1: "+thinning);
+		this.thinning = thinning;
+	}
+
+	/**
+	 * Fixes the chains' random streams, so that runs are reproducible.
+	 */
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+		this.seeded = true;
+	}
+
+	/**
+	 * Draws from splits of a copy of random instead of a SplitRandom.
+	 */
+	public void setRandom(RandomSource random)
+	{
+		this.random = random;
+	}
+
+	/**
+	 * Keeps doubling the run until every marginal has an R-hat of at most rhat and an effective sample size
+	 * of at least ess.  The run stops anyway once the next round would keep more than maxsamples scans per
+	 * chain.
+	 * @param rhat largest R-hat, 0 to ignore (e.g. 1.01)
+	 * @param ess smallest effective sample size over all chains, 0 to ignore
+	 * @param maxsamples most scans kept per chain
+	 */
+	public void setConvergence(float rhat, float ess, int maxsamples)
+	{
+		if(rhat < 0f || ess < 0f) throw new IllegalArgumentException("negative target");
+		this.rhat = rhat;
+		this.ess = ess;
+		this.limit = maxsamples;
+	}
+
+	/**
+	 * Returns the R-hat of every marginal of the last run, indexed by [topo index][time].  It is NaN with a
+	 * single chain and 1 for variables that never varied.
+	 */
+	public float[][] getRHat()
+	{
+		return rhats;
+	}
+
+	/**
+	 * Returns the effective sample size of every marginal of the last run over all chains, indexed by
+	 * [topo index][time].
+	 */
+	public float[][] getEffectiveSampleSizes()
+	{
+		return sizes;
+	}
+
+	/**
+	 * Returns the scans kept per chain by the last run.
+	 */
+	public int getSamplesUsed()
+	{
+		return used;
+	}
+
+	public void run()
+	{
+		if(size < 1) return;
+		this.compile();
+		RandomSource master;
+		if(random != null)
+		{
+			master = random.copy();
+		}else if(seeded)
+		{
+			master = new SplitRandom(seed);
+		}else{
+			master = new SplitRandom();
+		}
+		Chain[] all = new Chain[chains];
+		for(int j = 0; j < chains; j++)
+		{
+			all[j] = new Chain(master.split());
+		}
+		int kept = (number + BATCHES - 1) / BATCHES * BATCHES;
+		int batch = kept / BATCHES;
+		ForkJoinPool pool = (chains > 1) ? new ForkJoinPool(chains) : null;
+		try{
+			this.execute(pool, all, burnin, 0, kept, batch);
+			while(true)
+			{
+				this.diagnose(all, kept, batch);
+				if(this.converged() || (long)kept * 2 > limit) break;
+				// the kept scans so far become the first half of the batches
+				for(Chain chain : all)
+				{
+					chain.merge();
+				}
+				batch *= 2;
+				this.execute(pool, all, 0, kept, kept, batch);
+				kept *= 2;
+			}
+		}finally{
+			if(pool != null) pool.shutdown();
+		}
+		used = kept;
+	}
+
+	/**
+	 * Builds the effect lists and the dense evidence.
+	 */
+	private void compile()
+	{
+		steps = nodes[0].getSteps();
+		childstart = new int[size + 1];
+		for(int n = 0; n < size; n++)
+		{
+			for(int i = network.getParentStart(n); i < network.getParentEnd(n); i++)
+			{
+				childstart[network.getParent(i) + 1]++;
+			}
+		}
+		for(int n = 0; n < size; n++)
+		{
+			childstart[n + 1] += childstart[n];
+		}
+		child = new int[childstart[size]];
+		childbit = new long[childstart[size]];
+		int[] fill = Arrays.copyOf(childstart, size);
+		for(int n = 0; n < size; n++)
+		{
+			int end = network.getParentEnd(n);
+			for(int i = network.getParentStart(n); i < end; i++)
+			{
+				int k = fill[network.getParent(i)]++;
+				child[k] = n;
+				childbit[k] = 1L << (end - 1 - i); // the first cause is the highest bit
+			}
+		}
+		EvidenceIndex observations = new EvidenceIndex(nodes);
+		evidence = new float[steps][size];
+		for(int t = 0; t < steps; t++)
+		{
+			observations.fill(t, evidence[t]);
+		}
+	}
+
+	/**
+	 * Runs every chain for burn scans plus count kept scans, numbering the kept ones from first.
+	 */
+	private void execute(ForkJoinPool pool, Chain[] all, final int burn, final int first, final int count, final int batch)
+	{
+		final RecursiveAction[] tasks = new RecursiveAction[all.length];
+		for(int j = 0; j < all.length; j++)
+		{
+			final Chain chain = all[j];
+			tasks[j] = new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					chain.scan(burn, first, count, batch);
+				}
+			};
+		}
+		if(pool == null)
+		{
+			tasks[0].invoke();
+		}else{
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Computes the marginals, R-hat and effective sample sizes from kept scans per chain.
+	 */
+	private void diagnose(Chain[] all, int kept, int batch)
+	{
+		int m = all.length;
+		double n = kept;
+		int batches = kept / batch;
+		rhats = new float[size][steps];
+		sizes = new float[size][steps];
+		double[] means = new double[m];
+		for(int t = 0; t < steps; t++)
+		{
+			for(int node = 0; node < size; node++)
+			{
+				int v = t * size + node;
+				double mean = 0;
+				double within = 0;
+				double asymptotic = 0;
+				for(int j = 0; j < m; j++)
+				{
+					Chain chain = all[j];
+					means[j] = chain.sums[v] / n;
+					mean += means[j];
+					within += Math.max(0, (chain.squares[v] - n * means[j] * means[j]) / (n - 1));
+					for(int k = 0; k < batches; k++)
+					{
+						double deviation = chain.batches[k][v] / batch - means[j];
+						asymptotic += deviation * deviation;
+					}
+				}
+				mean /= m;
+				within /= m;
+				asymptotic = batch * asymptotic / (m * (batches - 1));
+				double between = 0;
+				for(int j = 0; j < m; j++)
+				{
+					between += (means[j] - mean) * (means[j] - mean);
+				}
+				between = (m > 1) ? n * between / (m - 1) : 0;
+				double pooled = (n - 1) / n * within + between / n;
+				nodes[node].setMarginal(t, (float)mean);
+				if(!(within > 0))
+				{
+					// never varied within a chain: exact, or stuck if the chains disagree
+					rhats[node][t] = (m < 2) ? Float.NaN : (between > 0) ? Float.POSITIVE_INFINITY : 1f;
+					sizes[node][t] = (float)(m * n);
+					continue;
+				}
+				rhats[node][t] = (m < 2) ? Float.NaN : (float)Math.sqrt(pooled / within);
+				sizes[node][t] = (asymptotic > 0) ? (float)Math.min(m * n, m * n * pooled / asymptotic) : (float)(m * n);
+			}
+		}
+	}
+
+	private boolean converged()
+	{
+		for(int node = 0; node < size; node++)
+		{
+			for(int t = 0; t < steps; t++)
+			{
+				if(rhat > 0f && rhats[node][t] > rhat) return false; // NaN passes
+				if(ess > 0f && sizes[node][t] < ess) return false;
+			}
+		}
+		return rhat > 0f || ess > 0f;
+	}
+
+	/**
+	 * Probability that a root is true at a time step given its value at the step before.
+	 */
+	private float transition(int node, boolean previous)
+	{
+		return 1.0f - ((1.0f - (previous ? network.getContinuation(node) : 0f)) * (1.0f - network.getLeak(node)));
+	}
+
+	/**
+	 * State and running sums of one chain, variables are indexed by time * nodes + topo index.
+	 */
+	private final class Chain
+	{
+		private final RandomSource R;
+		private final boolean[] state;
+		private final long[] index; // CPT index of every variable under the current state of its causes
+		final double[] sums; // of the kept conditional probabilities
+		final double[] squares;
+		final double[][] batches;
+
+		Chain(RandomSource R)
+		{
+			this.R = R;
+			state = new boolean[steps * size];
+			index = new long[steps * size];
+			sums = new double[steps * size];
+			squares = new double[steps * size];
+			batches = new double[BATCHES][steps * size];
+			// forward sample of the prior, with the fixed observations in place
+			for(int t = 0; t < steps; t++)
+			{
+				for(int n = 0; n < size; n++)
+				{
+					int v = t * size + n;
+					float observed = evidence[t][n];
+					boolean value;
+					if(observed == 0f || observed == 1f)
+					{
+						value = observed == 1f;
+					}else if(network.isRoot(n))
+					{
+						value = ((t == 0) ? network.getLeak(n) : transition(n, state[v - size])) >= R.nextFloat();
+					}else{
+						value = network.getConditional(n, index[v]) >= R.nextFloat();
+					}
+					if(value) this.set(t, n, true);
+				}
+			}
+		}
+
+		/**
+		 * Runs burn scans, then count scans whose conditionals are added to the sums and to the batches of
+		 * batch scans, numbered from first.
+		 */
+		void scan(int burn, int first, int count, int batch)
+		{
+			for(int s = 0; s < burn; s++)
+			{
+				this.sweep(null);
+			}
+			for(int s = 0; s < count; s++)
+			{
+				for(int skip = 1; skip < thinning; skip++)
+				{
+					this.sweep(null);
+				}
+				this.sweep(batches[(first + s) / batch]);
+			}
+		}
+
+		/**
+		 * Halves the batches, batch k becomes the sum of batches 2k and 2k + 1.
+		 */
+		void merge()
+		{
+			for(int k = 0; k < BATCHES / 2; k++)
+			{
+				double[] low = batches[2 * k];
+				double[] high = batches[2 * k + 1];
+				for(int v = 0; v < low.length; v++)
+				{
+					low[v] += high[v];
+				}
+			}
+			for(int k = 0; k < BATCHES / 2; k++)
+			{
+				double[] merged = batches[2 * k];
+				batches[2 * k] = batches[k];
+				batches[k] = merged;
+			}
+			for(int k = BATCHES / 2; k < BATCHES; k++)
+			{
+				Arrays.fill(batches[k], 0.0);
+			}
+		}
+
+		/**
+		 * Redraws every free variable once, adding the conditionals to the sums and to batch unless it is
+		 * null.
+		 */
+		private void sweep(double[] batch)
+		{
+			for(int t = 0; t < steps; t++)
+			{
+				float[] observed = evidence[t];
+				for(int n = 0; n < size; n++)
+				{
+					int v = t * size + n;
+					double probability;
+					if(observed[n] == 0f || observed[n] == 1f)
+					{
+						probability = observed[n];
+					}else{
+						probability = this.conditional(t, n, observed[n]);
+						boolean value = probability >= R.nextFloat();
+						if(value != state[v]) this.set(t, n, value);
+					}
+					if(batch != null)
+					{
+						sums[v] += probability;
+						squares[v] += probability * probability;
+						batch[v] += probability;
+					}
+				}
+			}
+		}
+
+		/**
+		 * P(variable is true | its Markov blanket).
+		 */
+		private double conditional(int t, int n, float observed)
+		{
+			int v = t * size + n;
+			float q;
+			if(network.isRoot(n))
+			{
+				q = (t == 0) ? network.getLeak(n) : transition(n, state[v - size]);
+			}else{
+				q = network.getConditional(n, index[v]);
+			}
+			double one = q;
+			double zero = 1.0 - q;
+			if(!Float.isNaN(observed))
+			{
+				one *= observed;
+				zero *= 1.0 - observed;
+			}
+			int base = t * size;
+			for(int i = childstart[n]; i < childstart[n + 1]; i++)
+			{
+				int c = child[i];
+				long causes = index[base + c];
+				float high = network.getConditional(c, causes | childbit[i]);
+				float low = network.getConditional(c, causes & ~childbit[i]);
+				if(state[base + c])
+				{
+					one *= high;
+					zero *= low;
+				}else{
+					one *= 1.0 - high;
+					zero *= 1.0 - low;
+				}
+			}
+			if(network.isRoot(n) && t + 1 < steps)
+			{
+				float high = transition(n, true);
+				float low = transition(n, false);
+				if(state[v + size])
+				{
+					one *= high;
+					zero *= low;
+				}else{
+					one *= 1.0 - high;
+					zero *= 1.0 - low;
+				}
+			}
+			double total = one + zero;
+			return (total > 0) ? one / total : 0.5;
+		}
+
+		/**
+		 * Sets a variable and updates the CPT indices of its effects.
+		 */
+		private void set(int t, int n, boolean value)
+		{
+			int base = t * size;
+			state[base + n] = value;
+			for(int i = childstart[n]; i < childstart[n + 1]; i++)
+			{
+				index[base + child[i]] ^= childbit[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.bayeslabs.causal.sampling;
+
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Picks exact inference or sampling for a DBN from the estimated width of the elimination and the size
+ * of the CPT lookups.
+ */
+public class InferenceSelector {
+
+	private InferenceSelector()
+	{
+	}
+
+	/**
+	 * Returns an ExactInference when its frontier fits ExactInference.MAX_WIDTH and it is estimated to do
+	 * less work than drawing numberofsamples particles, otherwise a Prediction.
+	 * @param nodes topo sorted nodes from Plan.buildDBN
+	 * @param numberofsamples particles the approximate sampler would use
+	 */
+	public static Sampler select(Node[] nodes, int numberofsamples)
+	{
+		if(nodes.length > 0 && ExactInference.frontierWidth(nodes) <= ExactInference.MAX_WIDTH)
+		{
+			double sampling = 0;
+			for(Node node : nodes)
+			{
+				sampling += node.getCauses().length + 1;
+			}
+			sampling *= numberofsamples;
+			if(ExactInference.estimateCost(nodes) <= sampling)
+			{
+				return new ExactInference(nodes);
+			}
+		}
+		return new Prediction(nodes, numberofsamples);
+	}
+}
@@ -1,6 +1,11 @@
 package com.bayeslabs.causal.sampling;
 
-import java.util.Random;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.bayeslabs.causal.model.CompiledNetwork;
 import com.bayeslabs.causal.model.Node;
 
 
@@ -8,174 +13,838 @@ import com.bayeslabs.causal.model.Node;
 public class ParticleFilter implements Sampler {
 
 	private Node[] nodes;
+	private CompiledNetwork network;
 	int number;
+	int workers = 1;
+	private long seed;
+	private boolean seeded = false;
+	private Resampler resampler = Resampling.MULTINOMIAL;
+	private float threshold = 1.0f; // resample when ESS < threshold * number
+	private float tolerance = 0f; // target standard error, 0 draws all particles
+	private int batch;
+	private int[] query; // topo indices the tolerance applies to, null for all
+	private boolean raoblackwell = false; // estimate from conditionals instead of sampled values
+	private int interval = 0; // steps between checkpoints, 0 for none
+	private Checkpoint[] checkpoints; // by time / spacing, of the last run
+	private int spacing; // interval the checkpoints were recorded with
+	private int edited = Integer.MAX_VALUE; // earliest time step whose evidence changed since it was filtered
+	private HashMap<Integer,Integer> topo; // <Event ID,TOPO index>, built on first edit
+
 
-	
-	boolean[] samplestate;
-	boolean[][] wsamples; // weighted samples
+	ParticlePopulation population; // weighted samples
 	int[] samplecount; // prior counts
+	float[] weights; // importance weights of the current time step
+	float[] ess; // effective sample size of each time step
+	int[] used; // particles drawn in each time step
+	float[] rootprob; // transition probability of every root at the current time
+	float[] evidence; // observation of every node at the current time, NaN if none
+	float[] marginal; // marginals of the last filtered time step
+	EvidenceIndex observations; // evidence of the current run or session
+	private EvidenceIndex given; // replaces the nodes' observations when set
+	float[][] record; // [topo index][time], receives the marginals instead of the nodes when set
+
+	private RandomSource random; // null for SplitRandom
+	private RandomSource R; // drives resampling
+	private RandomSource[] streams; // one per chunk
+	private ForkJoinPool pool;
+	private int[] selected;
+	private double[] sums;
+	private double[][] expected; // per chunk, weighted then unweighted sums of every node's estimate, null unless Rao-Blackwellised
+	private float[][] contributions; // per chunk, the estimate of every node for the current particle
+	private boolean[] influential; // nodes whose sampled value changes the weights of the current time step
+
+
 
-	
-	
 	public ParticleFilter(Node[] nodes, int numberofsamples)
 	{
-		this.nodes = nodes;
+		this(new CompiledNetwork(nodes), numberofsamples);
+	}
+
+	public ParticleFilter(CompiledNetwork network, int numberofsamples)
+	{
+		this.network = network;
+		this.nodes = network.getNodes();
 		this.number = numberofsamples;
 	}
-	
-	
-	
+
+	/**
+	 * Creates a filter that splits the particles into one contiguous chunk per worker and samples the
+	 * chunks on a fork-join pool.  Every chunk draws from its own stream split off the seed, so the
+	 * marginals are reproducible for a given seed and worker count.
+	 * @param nodes topo sorted nodes
+	 * @param numberofsamples particles per time step
+	 * @param workers number of chunks (and pool threads)
+	 * @param seed seed of the master random stream
+	 */
+	public ParticleFilter(Node[] nodes, int numberofsamples, int workers, long seed)
+	{
+		this(new CompiledNetwork(nodes), numberofsamples, workers, seed);
+	}
+
+	/**
+	 * Parallel, seeded filter over a compiled network, see ParticleFilter(Node[], int, int, long).
+	 */
+	public ParticleFilter(CompiledNetwork network, int numberofsamples, int workers, long seed)
+	{
+		this(network, numberofsamples);
+		if(workers < 1) throw new IllegalArgumentException("workers must be at least 1: "+workers);
+		this.workers = Math.min(workers, Math.max(1, numberofsamples));
+		this.seed = seed;
+		this.seeded = true;
+	}
+
+
+
+	CompiledNetwork network()
+	{
+		return network;
+	}
+
+	/**
+	 * Sets the scheme used to draw the new population, defaults to Resampling.MULTINOMIAL.
+	 */
+	public void setResampler(Resampler resampler)
+	{
+		this.resampler = resampler;
+	}
+
+	/**
+	 * Sets the effective sample size, as a fraction of the particle count, below which a time step is
+	 * resampled.  Above it the marginals are read from the weighted particles directly.  The default of
+	 * 1.0 resamples every step that has any evidence weighting.
+	 * @param threshold fraction in [0, 1]
+	 */
+	public void setResampleThreshold(float threshold)
+	{
+		if(threshold < 0f || threshold > 1f) throw new IllegalArgumentException("threshold must be in [0,1]: "+threshold);
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Switches to precision targeted sampling: every time step draws particles in batches and stops once
+	 * the standard error of each query marginal is at most error, or when the particle count given to the
+	 * constructor is reached.
+	 * @param error target standard error, e.g. 0.005
+	 * @param batch particles drawn between two checks
+	 */
+	public void setTolerance(float error, int batch)
+	{
+		if(!(error > 0f) || batch < 1) throw new IllegalArgumentException("tolerance "+error+" with batches of "+batch);
+		this.tolerance = error;
+		this.batch = batch;
+	}
+
+	/**
+	 * Restricts the tolerance check to some nodes, all nodes are checked by default.
+	 * @param ids event ids
+	 */
+	public void setQuery(int... ids)
+	{
+		this.query = Tolerance.query(nodes, ids);
+	}
+
+	/**
+	 * Switches to the Rao-Blackwellised estimator: a particle contributes the node's probability given its
+	 * sampled causes (the conditional, the root probability or the observation) instead of the node's
+	 * sampled value.  Nodes whose value changes the weights (causes of observed nodes and their
+	 * ancestors) keep their sampled value, so the estimate has the same mean and never a larger variance;
+	 * leaves are not drawn at all.  Marginals then come from the weighted particles and resampling is only
+	 * used when no particle agrees with the evidence.
+	 */
+	public void setRaoBlackwell(boolean raoblackwell)
+	{
+		this.raoblackwell = raoblackwell;
+	}
+
+	/**
+	 * Returns the number of particles actually drawn in each time step of the last run.
+	 */
+	public int[] getSamplesUsed()
+	{
+		return used;
+	}
+
+	/**
+	 * Returns the effective sample size (sum w)^2 / sum w^2 of each time step of the last run.
+	 */
+	public float[] getEffectiveSampleSizes()
+	{
+		return ess;
+	}
+
 	public void run()
 	{
 		if(nodes.length < 1)return;
-		Random R = new Random();
-		
+		try{
+			this.start();
+			if(interval > 0)
+			{
+				spacing = interval;
+				checkpoints = new Checkpoint[(nodes[0].getSteps() - 1) / spacing + 1];
+			}
+			this.checkpoint(0);
+			// now we sample time with weighted samples with replacement
+			for(int time=1; time<nodes[0].getSteps(); time++)
+			{
+				this.advance(time);
+				this.checkpoint(time);
+			}
+		}finally{
+			this.finish();
+		}
+	}
+
+	/**
+	 * Makes run() keep a checkpoint every steps time steps: the marginals and the state of the random
+	 * streams after the step, which is all a later step depends on.  After the evidence of the run is
+	 * edited, update() resumes from the last checkpoint before the edit instead of starting over.  A
+	 * checkpoint costs one float per node.  The checkpoints of a run keep the interval they were recorded
+	 * with, a new interval applies from the next run.
+	 * @param steps interval, 0 (the default) keeps none
+	 */
+	public void setCheckpointInterval(int steps)
+	{
+		if(steps < 0) throw new IllegalArgumentException("negative checkpoint interval "+steps);
+		this.interval = steps;
+	}
+
+	/**
+	 * Adds or replaces an observation in the evidence of the last run, update() then re-filters from
+	 * that time step on.
+	 * @param nodeId event id of the node
+	 * @param time time step
+	 * @param value observed probability
+	 */
+	public void observe(int nodeId, int time, float value)
+	{
+		if(observations == null) throw new IllegalStateException("the filter has not been run yet");
+		observations.observe(this.lookup(nodeId), time, value);
+		edited = Math.min(edited, time);
+	}
+
+	/**
+	 * Removes an observation from the evidence of the last run, see observe.
+	 */
+	public void unobserve(int nodeId, int time)
+	{
+		if(observations == null) throw new IllegalStateException("the filter has not been run yet");
+		observations.clear(this.lookup(nodeId), time);
+		edited = Math.min(edited, time);
+	}
+
+	/**
+	 * Brings the marginals up to date with the evidence edited since the last run or update.  Filtering
+	 * resumes from the last checkpoint before the earliest edited step, so with a seeded filter the
+	 * result is the same as a full run with the edited evidence while the steps before the checkpoint
+	 * are not filtered again.  Without a usable checkpoint the whole horizon is filtered.
+	 * @return the first time step that was filtered again, the horizon if nothing was edited
+	 */
+	public int update()
+	{
+		if(nodes.length < 1) return 0;
+		int steps = nodes[0].getSteps();
+		if(observations == null)
+		{
+			this.run();
+			return 0;
+		}
+		if(edited >= steps) return steps;
+		// the state after step edited - 1 is all that is needed
+		int from = (edited > 0 && checkpoints != null) ? Math.min(edited - 1, steps - 1) / spacing : -1;
+		Checkpoint checkpoint = (from >= 0) ? checkpoints[from] : null;
+		if(checkpoint == null)
+		{
+			EvidenceIndex evidence = observations;
+			EvidenceIndex previous = given;
+			try{
+				given = evidence; // run() starts from a copy of the edited evidence
+				this.run();
+			}finally{
+				given = previous;
+			}
+			return 0;
+		}
+		try{
+			this.restore(checkpoint);
+			edited = Integer.MAX_VALUE;
+			for(int time = checkpoint.time + 1; time < steps; time++)
+			{
+				this.advance(time);
+				this.checkpoint(time);
+			}
+		}finally{
+			this.finish();
+		}
+		return checkpoint.time + 1;
+	}
+
+	/**
+	 * Records the state after a time step when it falls on the checkpoint interval.
+	 */
+	private void checkpoint(int time)
+	{
+		if(checkpoints == null || time % spacing != 0) return;
+		RandomSource[] copies = new RandomSource[streams.length];
+		for(int w = 0; w < streams.length; w++)
+		{
+			copies[w] = streams[w].copy();
+		}
+		checkpoints[time / spacing] = new Checkpoint(time, marginal.clone(), R.copy(), copies);
+	}
+
+	private void restore(Checkpoint checkpoint)
+	{
+		System.arraycopy(checkpoint.marginal, 0, marginal, 0, marginal.length);
+		R = checkpoint.R.copy();
+		for(int w = 0; w < streams.length; w++)
+		{
+			streams[w] = checkpoint.streams[w].copy();
+		}
+		pool = (streams.length > 1) ? new ForkJoinPool(streams.length) : null;
+	}
+
+	private int lookup(int nodeId)
+	{
+		if(topo == null)
+		{
+			topo = new HashMap<Integer,Integer>();
+			for(int n = 0; n < nodes.length; n++)
+			{
+				topo.put(nodes[n].getId(), n);
+			}
+		}
+		Integer n = topo.get(nodeId);
+		if(n == null) throw new IllegalArgumentException("unknown node "+nodeId);
+		return n;
+	}
+
+	/**
+	 * Sets the generator to draw from, instead of a SplitRandom seeded by the constructor (or not at
+	 * all).  Every run starts from a copy of it: the copy drives resampling and each worker gets a split
+	 * of it.  A counter-based generator (Philox) is shared instead of split, each particle addresses its
+	 * own draws, so the result does not depend on the number of workers.
+	 */
+	public void setRandom(RandomSource random)
+	{
+		this.random = random;
+	}
+
+	/**
+	 * Uses evidence compiled elsewhere instead of the observations of the nodes.  Every run or session
+	 * starts from a copy, so sessions do not change it.
+	 */
+	public void setEvidence(EvidenceIndex evidence)
+	{
+		if(evidence.size() != nodes.length) throw new IllegalArgumentException("evidence for "+evidence.size()+" nodes, network has "+nodes.length);
+		this.given = evidence;
+	}
+
+	/**
+	 * Opens a streaming session: the prior pass (time 0) runs now and every FilterSession.step() then
+	 * filters exactly one more time step, keeping the population in memory.  The session uses this
+	 * filter's settings and must be closed when no longer needed.
+	 */
+	public FilterSession openSession()
+	{
+		if(nodes.length < 1) throw new IllegalStateException("no nodes to filter");
+		this.start();
+		return new FilterSession(this);
+	}
+
+	/**
+	 * Sets up the random streams, pool and buffers, then samples the prior at time 0.
+	 */
+	void start()
+	{
+		this.prepare();
+		int[][] counts = new int[streams.length][nodes.length];
+		int drawn = 0;
+		int target = (tolerance > 0f) ? Math.min(batch, number) : number;
+		while(true)
+		{
+			execute(0, counts, drawn, target);
+			for(int[] chunkcount : counts)
+			{
+				for(int n=0; n<nodes.length; n++)
+				{
+					samplecount[n] += chunkcount[n];
+				}
+				Arrays.fill(chunkcount, 0);
+			}
+			drawn = target;
+			if(drawn >= number) break;
+			if(expected != null)
+			{
+				this.merge(0);
+				if(Tolerance.met(sums, drawn, drawn, query, tolerance)) break;
+			}else if(Tolerance.met(samplecount, drawn, query, tolerance)) break;
+			target = Math.min(drawn + batch, number);
+		}
+		ess[0] = drawn; // the prior pass is unweighted
+		used[0] = drawn;
+		if(expected != null) this.merge(0);
+		for(int i=0; i<nodes.length;i++)
+		{
+			marginal[i] = (expected != null) ? (float)(sums[i] / drawn) : ((float)samplecount[i]/(float)drawn);
+		}
+		this.publish(0);
+	}
+
+	/**
+	 * Sets up the random streams, pool and buffers.
+	 */
+	private void prepare()
+	{
+		RandomSource master;
+		if(random != null)
+		{
+			master = random.copy();
+		}else if(seeded)
+		{
+			master = new SplitRandom(seed);
+		}else{
+			master = new SplitRandom();
+		}
+		streams = new RandomSource[workers];
+		for(int w=0; w<workers; w++)
+		{
+			streams[w] = master.isCounterBased() ? master.copy() : master.split();
+		}
+		R = master;
+		expected = raoblackwell ? new double[streams.length][2 * nodes.length] : null;
+		contributions = raoblackwell ? new float[streams.length][nodes.length] : null;
+		influential = new boolean[nodes.length];
+		pool = (streams.length > 1) ? new ForkJoinPool(streams.length) : null;
 		samplecount = new int[nodes.length];
-		
-		
-		
-		for(int sample = 0; sample<number; sample++)
+		population = new ParticlePopulation(number, nodes.length); // reused by every time step
+		weights = new float[number]; // this will hold the weights
+		selected = new int[number];
+		sums = new double[nodes.length];
+		rootprob = new float[nodes.length];
+		evidence = new float[nodes.length];
+		observations = (given != null) ? given.copy() : new EvidenceIndex(nodes);
+		checkpoints = null;
+		edited = Integer.MAX_VALUE;
+		marginal = new float[nodes.length];
+		ess = new float[nodes[0].getSteps()];
+		used = new int[nodes[0].getSteps()];
+	}
+
+	/**
+	 * Filters the steps after time with this filter's evidence, starting from the checkpoint a run of
+	 * source kept at time.  If source has the same network, settings and evidence up to time, the result
+	 * is the same as a full run of this filter.
+	 */
+	void resume(ParticleFilter source, int time)
+	{
+		Checkpoint checkpoint = (source.checkpoints != null && time % source.spacing == 0) ? source.checkpoints[time / source.spacing] : null;
+		if(checkpoint == null) throw new IllegalStateException("no checkpoint at time "+time);
+		try{
+			this.prepare();
+			this.restore(checkpoint);
+			for(int t = time + 1; t < nodes[0].getSteps(); t++)
+			{
+				this.advance(t);
+			}
+		}finally{
+			this.finish();
+		}
+	}
+
+	/**
+	 * Filters one time step, the marginals of time - 1 must be current.  Costs O(particles x nodes) no
+	 * matter how long the history is.
+	 */
+	void advance(int time)
+	{
+		for(int n = 0; n < nodes.length; n++)
+		{
+			if(network.isRoot(n))
+			{
+				// sample from (t-1) = transition probability * population at Xt (NOR with Leak)
+				rootprob[n] = 1.0f - ((1.0f -  (marginal[n] * network.getContinuation(n))) * (1.0f - network.getLeak(n)));
+			}
+		}
+		observations.fill(time, evidence);
+		if(expected != null)
+		{
+			this.influence();
+			for(double[] chunk : expected)
+			{
+				Arrays.fill(chunk, 0.0);
+			}
+		}
+
+		int drawn = 0;
+		int target = number;
+		if(tolerance > 0f)
 		{
-			samplestate = new boolean[nodes.length];
+			// draw batches until the weighted estimates are precise enough
+			Arrays.fill(sums, 0.0);
+			double total = 0;
+			double squares = 0;
+			target = Math.min(batch, number);
+			while(true)
+			{
+				execute(time, null, drawn, target);
+				for(int sample = drawn; sample < target; sample++)
+				{
+					total += weights[sample];
+					squares += (double)weights[sample] * weights[sample];
+					if(expected == null) population.accumulate(sample, weights[sample], sums);
+				}
+				drawn = target;
+				if(expected != null) this.merge(0);
+				if(drawn >= number || (total > 0 && Tolerance.met(sums, total, total * total / squares, query, tolerance))) break;
+				target = Math.min(drawn + batch, number);
+			}
+		}else{
+			execute(time, null, 0, number);
+			drawn = number;
+		}
+		if(time < used.length) used[time] = drawn;
+
+		double total = 0;
+		if(expected != null)
+		{
+			for(int sample = 0; sample < drawn; sample++)
+			{
+				total += weights[sample];
+			}
+		}
+		float size = normalise(weights, drawn);
+		if(time < ess.length) ess[time] = size;
+		if(expected != null)
+		{
+			// Rao-Blackwellised estimates of the weighted particles, or of all particles alike if no
+			// particle agrees with the evidence
+			this.merge((total > 0) ? 0 : nodes.length);
+			double normaliser = (total > 0) ? total : drawn;
+			for(int n = 0; n < nodes.length; n++)
+			{
+				marginal[n] = (float)Math.min(1.0, sums[n] / normaliser);
+			}
+		}else if(size < threshold * drawn)
+		{
+			// reset sample count
+			Arrays.fill(samplecount, 0);
+			// weighted re-sample with replacement
+			if(selected.length != drawn) selected = new int[drawn];
+			resampler.resample(weights, drawn, R, selected);
+			for(int sample : selected)
+			{
+				population.count(sample, samplecount); // collect new counts
+			}
+			// now update marginals for current time
+			for(int n = 0; n < nodes.length; n++)
+			{
+				marginal[n] = ((float)samplecount[n] / (float)drawn);
+			}
+		}else{
+			// enough weight diversity, use the weighted particles as they are
+			Arrays.fill(sums, 0.0);
+			for(int sample = 0; sample < drawn; sample++)
+			{
+				population.accumulate(sample, weights[sample], sums);
+			}
+			for(int n = 0; n < nodes.length; n++)
+			{
+				marginal[n] = (float)Math.min(1.0, sums[n]);
+			}
+		}
+		this.publish(time);
+	}
+
+	/**
+	 * Releases the worker pool.
+	 */
+	void finish()
+	{
+		if(pool != null) pool.shutdown();
+		pool = null;
+	}
+
+	/**
+	 * Copies the current marginals into the nodes (or record) when the time is inside their horizon.
+	 */
+	private void publish(int time)
+	{
+		if(time >= nodes[0].getSteps()) return;
+		for(int n = 0; n < nodes.length; n++)
+		{
+			if(record != null)
+			{
+				record[n][time] = marginal[n];
+			}else{
+				nodes[n].setMarginal(time, marginal[n]);
+			}
+		}
+	}
+
+	/**
+	 * Adds up the Rao-Blackwellised sums of all chunks into sums, the weighted ones from offset 0 or the
+	 * unweighted ones from offset nodes.length.
+	 */
+	private void merge(int offset)
+	{
+		Arrays.fill(sums, 0.0);
+		for(double[] chunk : expected)
+		{
+			for(int n = 0; n < nodes.length; n++)
+			{
+				sums[n] += chunk[offset + n];
+			}
+		}
+	}
+
+	/**
+	 * Marks the nodes whose sampled value changes the weights of the current time step: the causes of
+	 * observed effects and, since they determine those, all their ancestors.
+	 */
+	private void influence()
+	{
+		Arrays.fill(influential, false);
+		for(int n = nodes.length - 1; n >= 0; n--)
+		{
+			if(!influential[n] && (Float.isNaN(evidence[n]) || network.isRoot(n))) continue;
+			for(int i = network.getParentStart(n); i < network.getParentEnd(n); i++)
+			{
+				influential[network.getParent(i)] = true;
+			}
+		}
+	}
+
+	/**
+	 * Normalises the weights in place and returns the effective sample size.  If no particle agrees with
+	 * the evidence at all (every weight is zero) the weights fall back to uniform.
+	 */
+	private static float normalise(float[] weights, int count)
+	{
+		double total = 0;
+		for(int i = 0; i < count; i++)
+		{
+			total += weights[i];
+		}
+		if(!(total > 0))
+		{
+			Arrays.fill(weights, 0, count, 1f / count);
+			return count;
+		}
+		double squares = 0;
+		for(int i = 0; i < count; i++)
+		{
+			weights[i] = (float)(weights[i] / total);
+			squares += (double)weights[i] * weights[i];
+		}
+		return (float)(1.0 / squares);
+	}
+
+	/**
+	 * Samples particles [first, last) of one time step into the population, either inline or as one fork-join
+	 * task per stream.  At time 0 the chunk counts go into counts, afterwards the weights go into weights.
+	 */
+	private void execute(int time, int[][] counts, int first, int last)
+	{
+		final Chunk[] chunks = new Chunk[streams.length];
+		int range = last - first;
+		for(int w=0; w<streams.length; w++)
+		{
+			int from = first + (int)((long)range * w / streams.length);
+			int to = first + (int)((long)range * (w + 1) / streams.length);
+			chunks[w] = new Chunk(streams[w], time, from, to, (counts == null) ? null : counts[w], (expected == null) ? null : expected[w], (contributions == null) ? null : contributions[w]);
+		}
+		if(pool == null)
+		{
+			chunks[0].compute();
+		}else{
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					invokeAll(chunks);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Draws the prior samples of particles [from, to) and adds the node counts to counts, or the
+	 * probabilities the nodes were drawn with to expected when Rao-Blackwellised.
+	 */
+	private void samplePrior(RandomSource R, int from, int to, int[] counts, double[] expected)
+	{
+		for(int sample = from; sample<to; sample++)
+		{
+			population.clear(sample);
+			R.position(sample, 0);
 			for(int n=0; n<nodes.length;n++)
 			{
 				float prob = 0f;
-				if(nodes[n].isRoot())
+				if(network.isRoot(n))
 				{// has no causes, use leak, nodes are already toposorted
-					
-					prob = nodes[n].getConditional(0);
+
+					prob = network.getLeak(n);
 				}else
 				{ // this is caused by something else
 					// first we create a cpt index out of current sample state
-					int bit = nodes[n].getCauses().length - 1; // we are starting with high order bits
-					int index = 0;
-					for(int cause : nodes[n].getCauses())
-					{
-						if(samplestate[cause])
-							index|= 1<<bit;	//set the bit
-						bit--;
-					}
-					prob = nodes[n].getConditional(index);
+					prob = network.getConditional(n, population.index(sample, network, n));
+				}
+				if(expected != null)
+				{
+					expected[n] += prob;
+					if(network.isLeaf(n)) continue;
 				}
 				if(prob >= R.nextFloat())
 				{
-					samplestate[n] = true;
-					samplecount[n]++;
+					population.set(sample, n);
 				}
 			}
 		}//end of prior samples
-		for(int i=0; i<nodes.length;i++)
-		{
-			nodes[i].setMarginal(0, ((float)samplecount[i]/(float)number));
-		}
-		// now we sample time with weighted samples with replacement
+		if(expected == null) population.count(from, to, counts);
+	}
+
+	/**
+	 * Draws the particles [from, to) of a time step into the population and computes their weights.  When
+	 * Rao-Blackwellised, every particle adds its weighted estimates to expected once its weight is final.
+	 */
+	private void sampleWeighted(RandomSource R, int time, int from, int to, double[] expected, float[] contributions)
+	{
 		float prob;
-		float[] weights;
-		for(int time=1; time<nodes[0].getSteps(); time++)
-		{
-			weights = new float[number]; // this will hold the weights
-			wsamples = new boolean[number][nodes.length];
-			
-			for(int sampleindex=0; sampleindex<number; sampleindex++)
-			{
-				samplestate = new boolean[nodes.length];
-				weights[sampleindex] = 1f;
-				// each sample goes through nodes
-				for(int nodeindex=0; nodeindex<nodes.length; nodeindex++)
+		for(int sampleindex=from; sampleindex<to; sampleindex++)
+		{
+			population.clear(sampleindex);
+			R.position(sampleindex, time);
+			weights[sampleindex] = 1f;
+			// each sample goes through nodes
+			for(int nodeindex=0; nodeindex<nodes.length; nodeindex++)
+			{
+				prob = 0f;
+				if(network.isRoot(nodeindex))
 				{
-					prob = 0f;
-					if(nodes[nodeindex].isRoot())
+					if(!Float.isNaN(evidence[nodeindex]))
+					{
+						// using non-absolute evidence and sampling will account for Jeffery's rule,
+						// also, because this is a root node we do not need to compute weights (there is no P(e|x))
+						prob = evidence[nodeindex];
+
+					}else{
+						prob = rootprob[nodeindex];
+					}
+				}else{
+					if(!Float.isNaN(evidence[nodeindex]))
 					{
-						if(nodes[nodeindex].hasObservation(time))
+						// here we need to compute weights for its causes
+						float evidence = this.evidence[nodeindex];
+						prob = evidence;
+						// for now, keep it simple - if evidence > .49 then TRUE, most times these values will be
+						// 1 or 0 +/- 0.01..
+						boolean observation = false;
+						if(evidence > 0.49f)observation=true;
+						int end = network.getParentEnd(nodeindex);
+						long index;
+						if(!observation)// if observation is false, evidence weight should be be 1-evidence
 						{
-							// using non-absolute evidence and sampling will account for Jeffery's rule,
-							// also, because this is a root node we do not need to compute weights (there is no P(e|x))
-							prob = nodes[nodeindex].getObservationAt(time);
-							
-						}else{
-							// sample from (t-1) = transition probability * population at Xt (NOR with Leak)
-							prob = 1.0f - ((1.0f -  (nodes[nodeindex].getMarginal(time - 1) * nodes[nodeindex].getContinuation())) * (1.0f - nodes[nodeindex].getConditional(0)));  
-							
+							evidence = (1 - evidence);
 						}
-					}else{
-						if(nodes[nodeindex].hasObservation(time))
+						for(int i = network.getParentStart(nodeindex); i < end; i++)
 						{
-							// here we need to compute weights for its causes
-							float evidence = nodes[nodeindex].getObservationAt(time);
-							prob = evidence;
-							// for now, keep it simple - if evidence > .49 then TRUE, most times these values will be
-							// 1 or 0 +/- 0.01..
-							boolean observation = false;
-							if(evidence > 0.49f)observation=true;
-							int bit = nodes[nodeindex].getCauses().length - 1;
-							int index = 0;
-							if(!observation)// if observation is false, evidence weight should be be 1-evidence
-							{
-								evidence = (1 - evidence);
-							}
-							for(int c : nodes[nodeindex].getCauses())
-							{
-								index |= 1<<bit;
-								bit--;
-								if(samplestate[c] == observation)
-								{
-									weights[sampleindex] = weights[sampleindex] * (nodes[nodeindex].getConditional(index) * evidence);
-								}else{
-									weights[sampleindex] = weights[sampleindex] * ( 1 - (nodes[nodeindex].getConditional(index) * evidence));
-								}
-								index = 0; //reset (we only set individual bits)
-							}
-							
-						}else{
-							// caused by 
-							int bit = nodes[nodeindex].getCauses().length - 1; // we are starting with high order bits
-							int index = 0;
-							for(int cause : nodes[nodeindex].getCauses())
+							index = 1L << (end - 1 - i); // we only set individual bits
+							if(population.get(sampleindex, network.getParent(i)) == observation)
 							{
-								if(samplestate[cause])
-									index|= 1<<bit;	//set the bit
-								bit--;
+								weights[sampleindex] = weights[sampleindex] * (network.getConditional(nodeindex, index) * evidence);
+							}else{
+								weights[sampleindex] = weights[sampleindex] * ( 1 - (network.getConditional(nodeindex, index) * evidence));
 							}
-							
-							prob = nodes[nodeindex].getConditional(index);
-							
 						}
-					}
-					// sample this prob (even for nodes with evidence, in case they are not absolute)
-					if(prob >= R.nextFloat())
-					{
-						samplestate[nodeindex]=true;
-						wsamples[sampleindex][nodeindex] = true;
+
+					}else{
+						// caused by
+						prob = network.getConditional(nodeindex, population.index(sampleindex, network, nodeindex));
+
 					}
 				}
-				
-			} // end for each  sample
-			// reset sample count
-			samplecount = new int[nodes.length];
-			// weighted re-sample with replacement
-			int selected = 0;
-			for(int sample = 0; selected < weights.length; sample++)
+				if(expected != null && !influential[nodeindex])
+				{
+					contributions[nodeindex] = prob;
+					if(network.isLeaf(nodeindex)) continue;
+				}
+				// sample this prob (even for nodes with evidence, in case they are not absolute)
+				if(prob >= R.nextFloat())
+				{
+					population.set(sampleindex, nodeindex);
+					if(expected != null && influential[nodeindex]) contributions[nodeindex] = 1f;
+				}else if(expected != null && influential[nodeindex])
+				{
+					contributions[nodeindex] = 0f;
+				}
+			}
+			if(expected != null)
 			{
-				if(weights[sample] > R.nextFloat())
+				int offset = nodes.length;
+				for(int n = 0; n < offset; n++)
 				{
-					for(int nodeindex=0; nodeindex<nodes.length;nodeindex++)
-					{
-						if(wsamples[sample][nodeindex])
-						{
-							samplecount[nodeindex]++; // collect new counts
-						}
-					}
-					selected++;
+					expected[n] += weights[sampleindex] * contributions[n];
+					expected[offset + n] += contributions[n];
 				}
-				if(sample == weights.length)sample=0; // reset index instead of doing modulus on index
 			}
-			// now update marginals for current time
-			for(int n = 0; n < nodes.length; n++)
+
+		} // end for each  sample
+	}
+
+	/**
+	 * State after a time step: the marginals and copies of the random streams.
+	 */
+	private static final class Checkpoint
+	{
+		final int time;
+		final float[] marginal;
+		final RandomSource R;
+		final RandomSource[] streams;
+
+		Checkpoint(int time, float[] marginal, RandomSource R, RandomSource[] streams)
+		{
+			this.time = time;
+			this.marginal = marginal;
+			this.R = R;
+			this.streams = streams;
+		}
+	}
+
+	/**
+	 * One worker's share of a time step: a contiguous particle range and the stream it draws from.
+	 */
+	private class Chunk extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final RandomSource R;
+		private final int time;
+		private final int from;
+		private final int to;
+		private final int[] counts;
+		private final double[] expected;
+		private final float[] contributions;
+
+		Chunk(RandomSource R, int time, int from, int to, int[] counts, double[] expected, float[] contributions)
+		{
+			this.R = R;
+			this.time = time;
+			this.from = from;
+			this.to = to;
+			this.counts = counts;
+			this.expected = expected;
+			this.contributions = contributions;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(time == 0)
 			{
-				nodes[n].setMarginal(time, ((float)samplecount[n] / (float)number));
+				samplePrior(R, from, to, counts, expected);
+			}else{
+				sampleWeighted(R, time, from, to, expected, contributions);
 			}
-		}// end for each time
-		 
+		}
 	}
 
 }
@@ -0,0 +1,152 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Arrays;
+
+import com.bayeslabs.causal.model.CompiledNetwork;
+
+/**
+ * A reusable population of particles.  Every particle holds one bit per topo sorted node, packed into
+ * long words, so a population of N particles over M nodes takes N * ceil(M/64) longs instead of N*M
+ * booleans.  Particles are laid out one after another (particle major), which keeps a particle's
+ * causes close together while it is being sampled.
+ */
+public class ParticlePopulation {
+
+	private final int particles;
+	private final int nodes;
+	private final int words; // words per particle
+	private final long[] bits;
+
+	public ParticlePopulation(int particles, int nodes)
+	{
+		this.particles = particles;
+		this.nodes = nodes;
+		this.words = (nodes + 63) >>> 6;
+		if((long)particles * words > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("population too large: "+particles+" particles of "+nodes+" nodes");
+		this.bits = new long[particles * words];
+	}
+
+	public int size()
+	{
+		return particles;
+	}
+
+	public int getNodeCount()
+	{
+		return nodes;
+	}
+
+	public boolean get(int particle, int node)
+	{
+		return (bits[particle * words + (node >>> 6)] & (1L << node)) != 0;
+	}
+
+	public void set(int particle, int node)
+	{
+		bits[particle * words + (node >>> 6)] |= (1L << node);
+	}
+
+	/**
+	 * Resets every node of a particle to false.
+	 */
+	public void clear(int particle)
+	{
+		int base = particle * words;
+		Arrays.fill(bits, base, base + words, 0L);
+	}
+
+	public void clear()
+	{
+		Arrays.fill(bits, 0L);
+	}
+
+	/**
+	 * Copies a particle from another population (or this one) of the same node count.
+	 */
+	public void copy(int particle, ParticlePopulation from, int source)
+	{
+		System.arraycopy(from.bits, source * from.words, bits, particle * words, words);
+	}
+
+	/**
+	 * Builds the CPT index of a node from the state of its causes, the first cause is the high order bit.
+	 * @param particle particle to read
+	 * @param causes topo sort indices of the causes
+	 * @return Power Set index of active causes
+	 */
+	public int index(int particle, int[] causes)
+	{
+		int base = particle * words;
+		int index = 0;
+		for(int cause : causes)
+		{
+			index = (index << 1) | (int)((bits[base + (cause >>> 6)] >>> cause) & 1L);
+		}
+		return index;
+	}
+
+	/**
+	 * Builds the CPT index of a node of a compiled network, the first cause is the high order bit.  The
+	 * index is a long so that lazy CPTs with more than 31 causes can be addressed.
+	 */
+	public long index(int particle, CompiledNetwork network, int node)
+	{
+		int base = particle * words;
+		long index = 0;
+		int cause;
+		for(int i = network.getParentStart(node), end = network.getParentEnd(node); i < end; i++)
+		{
+			cause = network.getParent(i);
+			index = (index << 1) | ((bits[base + (cause >>> 6)] >>> cause) & 1L);
+		}
+		return index;
+	}
+
+	/**
+	 * Adds one to counts[node] for every node that is true in the particle, scanning only the set bits.
+	 */
+	public void count(int particle, int[] counts)
+	{
+		int base = particle * words;
+		long word;
+		for(int w = 0; w < words; w++)
+		{
+			word = bits[base + w];
+			while(word != 0)
+			{
+				counts[(w << 6) + Long.numberOfTrailingZeros(word)]++;
+				word &= word - 1; // clear lowest set bit
+			}
+		}
+	}
+
+	/**
+	 * Adds weight to sums[node] for every node that is true in the particle.
+	 */
+	public void accumulate(int particle, double weight, double[] sums)
+	{
+		int base = particle * words;
+		long word;
+		for(int w = 0; w < words; w++)
+		{
+			word = bits[base + w];
+			while(word != 0)
+			{
+				sums[(w << 6) + Long.numberOfTrailingZeros(word)] += weight;
+				word &= word - 1;
+			}
+		}
+	}
+
+	/**
+	 * Counts the true nodes of particles [from, to).
+	 */
+	public void count(int from, int to, int[] counts)
+	{
+		for(int particle = from; particle < to; particle++)
+		{
+			count(particle, counts);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package com.bayeslabs.causal.sampling;
+
+/**
+ * Philox4x32-10 (Salmon et al., "Parallel random numbers: as easy as 1, 2, 3"), a counter-based
+ * generator: a draw is a keyed bijection of a 128 bit counter, so any draw can be computed on its own.
+ * The samplers address draws by (particle, draw, time), which makes a run independent of how the
+ * particles are split over workers or batches.  Used sequentially it counts through its own stream.
+ * <p>
+ * Counter layout: word 0 the particle, word 1 the time, word 2 the block of four draws, word 3 zero for
+ * addressed draws; sequential draws use words 0-1 as a 64 bit counter and set the top bit of word 3.
+ */
+public class Philox extends RandomSource {
+
+	private static final long serialVersionUID = 1L;
+	private static final long M0 = 0xD2511F53L;
+	private static final long M1 = 0xCD9E8D57L;
+	private static final int W0 = 0x9E3779B9;
+	private static final int W1 = 0xBB67AE85;
+	private static final int SEQUENTIAL = 0x80000000;
+
+	private final int k0;
+	private final int k1;
+	private int c0; // next counter block
+	private int c1;
+	private int c2;
+	private int c3;
+	private final int[] block = new int[4];
+	private int used = 4; // words of block consumed
+
+	/**
+	 * Creates a generator with a key from a fresh SplitRandom.
+	 */
+	public Philox()
+	{
+		this(new SplitRandom().nextLong());
+	}
+
+	/**
+	 * @param key 64 bit key, generators with different keys produce unrelated draws
+	 */
+	public Philox(long key)
+	{
+		this.k0 = (int)key;
+		this.k1 = (int)(key >>> 32);
+		this.c3 = SEQUENTIAL;
+	}
+
+	private Philox(Philox source)
+	{
+		this.k0 = source.k0;
+		this.k1 = source.k1;
+		this.c0 = source.c0;
+		this.c1 = source.c1;
+		this.c2 = source.c2;
+		this.c3 = source.c3;
+		System.arraycopy(source.block, 0, block, 0, 4);
+		this.used = source.used;
+	}
+
+	@Override
+	public boolean isCounterBased()
+	{
+		return true;
+	}
+
+	@Override
+	public void position(int particle, int time)
+	{
+		c0 = particle;
+		c1 = time;
+		c2 = 0;
+		c3 = 0;
+		used = 4;
+	}
+
+	@Override
+	public float uniform(int particle, int draw, int time)
+	{
+		int[] out = new int[4];
+		philox(particle, time, draw >>> 2, 0, out);
+		return toFloat(out[draw & 3]);
+	}
+
+	@Override
+	public void uniforms(int first, int count, int draw, int time, float[] out)
+	{
+		int[] words = new int[4];
+		for(int i = 0; i < count; i++)
+		{
+			philox(first + i, time, draw >>> 2, 0, words);
+			out[i] = toFloat(words[draw & 3]);
+		}
+	}
+
+	@Override
+	public float nextFloat()
+	{
+		return toFloat(nextWord());
+	}
+
+	@Override
+	public long nextLong()
+	{
+		return ((long)nextWord() << 32) | (nextWord() & 0xFFFFFFFFL);
+	}
+
+	@Override
+	public void fill(float[] out, int from, int to)
+	{
+		for(int i = from; i < to; i++)
+		{
+			out[i] = toFloat(nextWord());
+		}
+	}
+
+	@Override
+	public Philox split()
+	{
+		return new Philox(nextLong());
+	}
+
+	@Override
+	public Philox copy()
+	{
+		return new Philox(this);
+	}
+
+	private int nextWord()
+	{
+		if(used == 4)
+		{
+			philox(c0, c1, c2, c3, block);
+			this.increment();
+			used = 0;
+		}
+		return block[used++];
+	}
+
+	/**
+	 * Advances the counter: addressed draws step through word 2, sequential ones through words 0-1.
+	 */
+	private void increment()
+	{
+		if(c3 != SEQUENTIAL)
+		{
+			c2++;
+			return;
+		}
+		if(++c0 == 0) c1++;
+	}
+
+	private void philox(int x0, int x1, int x2, int x3, int[] out)
+	{
+		int key0 = k0;
+		int key1 = k1;
+		long p0;
+		long p1;
+		for(int round = 0; round < 10; round++)
+		{
+			p0 = M0 * (x0 & 0xFFFFFFFFL);
+			p1 = M1 * (x2 & 0xFFFFFFFFL);
+			int y0 = (int)(p1 >>> 32) ^ x1 ^ key0;
+			int y2 = (int)(p0 >>> 32) ^ x3 ^ key1;
+			x1 = (int)p1;
+			x3 = (int)p0;
+			x0 = y0;
+			x2 = y2;
+			key0 += W0;
+			key1 += W1;
+		}
+		out[0] = x0;
+		out[1] = x1;
+		out[2] = x2;
+		out[3] = x3;
+	}
+
+	private static float toFloat(int word)
+	{
+		return (word >>> 8) * 0x1.0p-24f;
+	}
+}
@@ -1,97 +1,406 @@
 package com.bayeslabs.causal.sampling;
 
-import java.util.Random;
+import com.bayeslabs.causal.model.CompiledNetwork;
 import com.bayeslabs.causal.model.Node;
 
 public class Prediction implements Sampler {
 
 	private Node[] nodes;
+	private CompiledNetwork network;
 	private int number;
+	private float tolerance = 0f; // target standard error, 0 draws all particles
+	private int batch;
+	private int[] query; // topo indices the tolerance applies to, null for all
+	private boolean blocks = false; // sample 64 particles per node at a time
+	private boolean stationary = true; // copy provably stationary marginals forward
+	private int[] active; // topo indices sampled in the current time step
+	private EvidenceIndex given; // replaces the nodes' observations when set
+	private float[] observed; // evidence of the current time step, NaN if none
+	private RandomSource random; // null draws from a fresh SplitRandom
+	private boolean raoblackwell = false; // estimate from conditionals instead of sampled values
 
 	
-	boolean[] samplestate;
+	ParticlePopulation population;
 	int[] samplecount; // prior counts
+	double[] expected; // sums of P(node | sampled causes), null unless Rao-Blackwellised
+	float[] rootprob; // probability of every root at the current time
+	int[] used; // particles drawn in each time step
 
 	
 	public Prediction(Node[] nodes, int numberofsamples)
 	{
-		this.nodes = nodes;
+		this(new CompiledNetwork(nodes), numberofsamples);
+	}
+	
+	public Prediction(CompiledNetwork network, int numberofsamples)
+	{
+		this.network = network;
+		this.nodes = network.getNodes();
 		this.number = numberofsamples;
 	}
+	
+	/**
+	 * Switches to precision targeted sampling: every time step draws particles in batches and stops once
+	 * the standard error of each query marginal is at most error, or when the particle count given to the
+	 * constructor is reached.
+	 * @param error target standard error, e.g. 0.005
+	 * @param batch particles drawn between two checks
+	 */
+	public void setTolerance(float error, int batch)
+	{
+		if(!(error > 0f) || batch < 1) throw new IllegalArgumentException("tolerance "+error+" with batches of "+batch);
+		this.tolerance = error;
+		this.batch = batch;
+	}
+	
+	/**
+	 * Restricts the tolerance check to some nodes, all nodes are checked by default.
+	 * @param ids event ids
+	 */
+	public void setQuery(int... ids)
+	{
+		this.query = Tolerance.query(nodes, ids);
+	}
+	
+	/**
+	 * Samples a block of 64 particles per node at a time with the BlockKernel from BlockKernels.get()
+	 * (SIMD when the bayeslabs-vector module and jdk.incubator.vector are available), instead of one
+	 * particle at a time.  Counts then come from a popcount of each node's block.
+	 */
+	public void setBlockSampling(boolean blocks)
+	{
+		this.blocks = blocks;
+	}
+	
+	/**
+	 * Uses evidence compiled elsewhere instead of the observations of the nodes.
+	 */
+	public void setEvidence(EvidenceIndex evidence)
+	{
+		if(evidence.size() != nodes.length) throw new IllegalArgumentException("evidence for "+evidence.size()+" nodes, network has "+nodes.length);
+		this.given = evidence;
+	}
+	
+	/**
+	 * Sets the generator to draw from.  Every run starts from a copy of it, so runs with the same
+	 * generator are reproducible.  With a counter-based generator (Philox) particle i draws exactly the
+	 * same numbers with and without block sampling.
+	 */
+	public void setRandom(RandomSource random)
+	{
+		this.random = random;
+	}
+	
+	/**
+	 * Switches to the Rao-Blackwellised estimator: a marginal is the mean over particles of the node's
+	 * probability given the particle's sampled causes (the conditional, the root probability or the
+	 * observation) instead of the fraction of particles that drew the node true.  It has the same mean
+	 * and never a larger variance, and leaves are not drawn at all since nothing depends on their value.
+	 * The tolerance check then stays binomial, which overstates the error.
+	 */
+	public void setRaoBlackwell(boolean raoblackwell)
+	{
+		this.raoblackwell = raoblackwell;
+	}
+	
+	/**
+	 * Turns the stationarity analysis off (it is on by default), so that every node is sampled in every
+	 * time step.  See stationarySince.
+	 */
+	public void setStationaryDetection(boolean stationary)
+	{
+		this.stationary = stationary;
+	}
+	
+	/**
+	 * Returns the number of particles actually drawn in each time step of the last run.
+	 */
+	public int[] getSamplesUsed()
+	{
+		return used;
+	}
 	@Override
 	
 	/**
-	 * Complexity O(TSN)
+	 * Complexity O(TSN), where N shrinks to the nodes that are not stationary yet and their causes
 	 */
 	public void run() {
 		if(nodes.length < 1)return;
-		Random R = new Random();
+		RandomSource R = (random != null) ? random.copy() : new SplitRandom();
+		BlockKernel kernel = blocks ? BlockKernels.get() : null;
+		population = blocks ? null : new ParticlePopulation(number, nodes.length); // reused by every time step
+		rootprob = new float[nodes.length];
+		used = new int[nodes[0].getSteps()];
+		EvidenceIndex evidence = (given != null) ? given : new EvidenceIndex(nodes);
+		observed = new float[nodes.length];
+		int[] since = stationary ? stationarySince(network, nodes[0].getSteps(), evidence) : null;
+		int[] all = new int[nodes.length];
+		for(int n = 0; n < all.length; n++)
+		{
+			all[n] = n;
+		}
+		int[] check = query;
 		
 		for(int time = 0; time < nodes[0].getSteps(); time++)
 		{
 			samplecount = new int[nodes.length];
-			for(int i = 0; i<number; i++)
+			expected = raoblackwell ? new double[nodes.length] : null;
+			evidence.fill(time, observed);
+			if(since != null)
 			{
-				samplestate = new boolean[nodes.length];
-				
-				for(int n=0; n<nodes.length;n++)
+				active = sampled(network, since, time);
+				check = changing(since, time, (query != null) ? query : all);
+			}else{
+				active = all;
+			}
+			if(active.length == 0)
+			{
+				for(int i=0; i<nodes.length;i++)
 				{
-					float prob = 0f;
-					if(nodes[n].isRoot())
-					{// has no causes, use leak, nodes are already toposorted
-						
-						if(nodes[n].hasObservation(time))
-						{
-							prob = nodes[n].getObservationAt(time);
-						}else{
-							
-						
-							if(time==0){
-								prob = nodes[n].getConditional(0);
-							}
-							else{
-								// lookup t - 1 and multiply by continuation
-								prob =  1.0f - ((1.0f -  (nodes[n].getMarginal(time - 1) * nodes[n].getContinuation())) * (1.0f - nodes[n].getConditional(0)));  
-								
-							}
-						}
-							
-					}else
-					{ // this is caused by something else
-						
-						// observations
-						if(nodes[n].hasObservation(time))
-						{
-							prob = nodes[n].getObservationAt(time);
-						}else{
-						// first we create a cpt index out of current sample state
-							int bit = nodes[n].getCauses().length - 1; // we are starting with high order bits
-							int index = 0;
-							for(int cause : nodes[n].getCauses())
-							{
-								if(samplestate[cause])
-									index|= 1<<bit;	//set the bit
-								bit--;
-							}
-							// check status from last time
-							prob = nodes[n].getConditional(index);
-						}
+					nodes[i].setMarginal(time, nodes[i].getMarginal(time - 1));
+				}
+				continue;
+			}
+			if(population != null) population.clear();
+			for(int n=0; n<nodes.length;n++)
+			{
+				if(network.isRoot(n))
+				{// has no causes, use leak, nodes are already toposorted
+					if(time==0){
+						rootprob[n] = network.getLeak(n);
 					}
-					
-					
-					if(prob >= R.nextFloat())
-					{
-						samplestate[n] = true;
-						samplecount[n]++;
+					else{
+						// lookup t - 1 and multiply by continuation
+						rootprob[n] =  1.0f - ((1.0f -  (nodes[n].getMarginal(time - 1) * network.getContinuation(n))) * (1.0f - network.getLeak(n)));  
 					}
 				}
 			}
+			int drawn = 0;
+			int target = (tolerance > 0f) ? Math.min(batch, number) : number;
+			while(true)
+			{
+				if(kernel != null)
+				{
+					this.sampleBlocks(kernel, R, time, drawn, target);
+				}else{
+					this.sample(R, time, drawn, target);
+					if(expected == null) population.count(drawn, target, samplecount);
+				}
+				drawn = target;
+				if(drawn >= number) break;
+				if(expected != null ? Tolerance.met(expected, drawn, drawn, check, tolerance) : Tolerance.met(samplecount, drawn, check, tolerance)) break;
+				target = Math.min(drawn + batch, number);
+			}
+			used[time] = drawn;
 			for(int i=0; i<nodes.length;i++)
 			{
-				nodes[i].setMarginal(time, ((float)samplecount[i]/(float)number));
+				if(since != null && time > since[i])
+				{
+					nodes[i].setMarginal(time, nodes[i].getMarginal(time - 1));
+				}else if(expected != null)
+				{
+					nodes[i].setMarginal(time, (float)(expected[i] / drawn));
+				}else{
+					nodes[i].setMarginal(time, ((float)samplecount[i]/(float)drawn));
+				}
 			}
 		}// end for each time
 
 	}
+	
+	/**
+	 * Returns for every node the time step from which its marginal provably stays the same, or steps if
+	 * there is none.  A root is stationary after its last observation when the transition cannot change
+	 * its probability: no continuation, a certain leak, continuation 1 without leak, or no leak and never
+	 * observed.  An effect depends only on the current state of its causes, so it is stationary once all
+	 * of them are and it has no later observations.
+	 */
+	static int[] stationarySince(CompiledNetwork network, int steps, EvidenceIndex evidence)
+	{
+		int[] since = new int[network.size()];
+		int[] lastobserved = evidence.lastObserved(steps);
+		int last;
+		float continuation;
+		float leak;
+		for(int n = 0; n < since.length; n++)
+		{
+			last = lastobserved[n];
+			if(network.isRoot(n))
+			{
+				continuation = network.getContinuation(n);
+				leak = network.getLeak(n);
+				if(continuation == 0f || leak == 1f || (continuation == 1f && leak == 0f))
+				{
+					since[n] = last + 1;
+				}else if(leak == 0f && last < 0)
+				{
+					since[n] = 0;
+				}else{
+					since[n] = steps;
+				}
+			}else{
+				since[n] = last + 1;
+				for(int i = network.getParentStart(n); i < network.getParentEnd(n); i++)
+				{
+					since[n] = Math.max(since[n], since[network.getParent(i)]);
+				}
+			}
+		}
+		return since;
+	}
+	
+	/**
+	 * Returns the nodes to sample in a time step: those that are not stationary yet and their causes, in
+	 * topo order.  Causes precede their effects, so a single backward sweep collects them.
+	 */
+	private static int[] sampled(CompiledNetwork network, int[] since, int time)
+	{
+		boolean[] keep = new boolean[since.length];
+		int count = 0;
+		for(int n = since.length - 1; n >= 0; n--)
+		{
+			if(time <= since[n]) keep[n] = true;
+			if(!keep[n]) continue;
+			count++;
+			for(int i = network.getParentStart(n); i < network.getParentEnd(n); i++)
+			{
+				keep[network.getParent(i)] = true;
+			}
+		}
+		int[] sampled = new int[count];
+		int i = 0;
+		for(int n = 0; n < since.length; n++)
+		{
+			if(keep[n]) sampled[i++] = n;
+		}
+		return sampled;
+	}
+	
+	/**
+	 * Returns the nodes of a set whose marginal is still estimated in a time step.
+	 */
+	private static int[] changing(int[] since, int time, int[] nodes)
+	{
+		int count = 0;
+		for(int n : nodes)
+		{
+			if(time <= since[n]) count++;
+		}
+		int[] changing = new int[count];
+		int i = 0;
+		for(int n : nodes)
+		{
+			if(time <= since[n]) changing[i++] = n;
+		}
+		return changing;
+	}
+	
+	/**
+	 * Draws particles [from, to) of a time step in blocks of 64 and adds them to samplecount (or expected).  Each node
+	 * is sampled for the whole block: CPT indices for all lanes, one gather, bulk uniforms and one compare
+	 * that yields the node's bits for the block.
+	 */
+	private void sampleBlocks(BlockKernel kernel, RandomSource R, int time, int from, int to)
+	{
+		long[] columns = new long[nodes.length];
+		int[] index = new int[BlockKernel.LANES];
+		float[] probs = new float[BlockKernel.LANES];
+		float[] uniforms = new float[BlockKernel.LANES];
+		int count;
+		int draw;
+		for(int block = from; block < to; block += BlockKernel.LANES)
+		{
+			count = Math.min(BlockKernel.LANES, to - block);
+			draw = 0;
+			for(int n : active)
+			{
+				boolean leaf = (expected != null) && network.isLeaf(n); // its value is never read
+				if(!leaf)
+				{
+					if(R.isCounterBased())
+					{
+						R.uniforms(block, count, draw++, time, uniforms);
+					}else{
+						R.fill(uniforms, 0, count);
+					}
+				}
+				if(!Float.isNaN(observed[n]))
+				{
+					if(expected != null) expected[n] += (double)observed[n] * count;
+					if(!leaf) columns[n] = kernel.compare(observed[n], uniforms, count);
+				}else if(network.isRoot(n))
+				{
+					if(expected != null) expected[n] += (double)rootprob[n] * count;
+					if(!leaf) columns[n] = kernel.compare(rootprob[n], uniforms, count);
+				}else if(network.getParentEnd(n) - network.getParentStart(n) > 31)
+				{
+					// too wide for int indices, go lane by lane
+					long mask = 0;
+					float prob;
+					for(int lane = 0; lane < count; lane++)
+					{
+						long key = 0;
+						for(int i = network.getParentStart(n); i < network.getParentEnd(n); i++)
+						{
+							key = (key << 1) | ((columns[network.getParent(i)] >>> lane) & 1L);
+						}
+						prob = network.getConditional(n, key);
+						if(expected != null) expected[n] += prob;
+						if(!leaf && prob >= uniforms[lane]) mask |= 1L << lane;
+					}
+					columns[n] = mask;
+				}else
+				{
+					kernel.index(columns, network, n, index);
+					network.getConditionals(n, index, probs, count);
+					if(expected != null)
+					{
+						for(int lane = 0; lane < count; lane++)
+						{
+							expected[n] += probs[lane];
+						}
+					}
+					if(!leaf) columns[n] = kernel.compare(probs, uniforms, count);
+				}
+				if(expected == null) samplecount[n] += Long.bitCount(columns[n]);
+			}
+		}
+	}
+	
+	/**
+	 * Draws particles [from, to) of a time step into the population.
+	 */
+	private void sample(RandomSource R, int time, int from, int to)
+	{
+		for(int i = from; i<to; i++)
+		{
+			R.position(i, time);
+			for(int n : active)
+			{
+				float prob = 0f;
+				if(!Float.isNaN(observed[n]))
+				{
+					prob = observed[n];
+				}else if(network.isRoot(n))
+				{
+					prob = rootprob[n];
+				}else
+				{ // this is caused by something else
+					// first we create a cpt index out of current sample state
+					prob = network.getConditional(n, population.index(i, network, n));
+				}
+				if(expected != null)
+				{
+					expected[n] += prob;
+					if(network.isLeaf(n)) continue;
+				}
+				
+				if(prob >= R.nextFloat())
+				{
+					population.set(i, n);
+				}
+			}
+		}
+	}
 
 }
@@ -0,0 +1,122 @@
+package com.bayeslabs.causal.sampling;
+
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Randomized quasi-Monte Carlo inference: a few independent replicates of Prediction (or ParticleFilter),
+ * each drawing its particles from a differently scrambled Halton sequence.  The marginals are the mean of
+ * the replicates and their standard error is estimated from the spread between replicates, which the
+ * binomial formula of the pseudo-random samplers would overstate for low-discrepancy points.
+ * <p>
+ * The gain is largest where a time step is sampled from scratch, the time 0 prior and every Prediction
+ * step.  A ParticleFilter resamples from a pseudo-random stream, which dilutes it after evidence.
+ */
+public class QuasiMonteCarlo implements Sampler {
+
+	private final Node[] nodes;
+	private final int number;
+	private final int replicates;
+	private boolean filter = false;
+	private boolean blocks = false;
+	private long seed;
+	private boolean seeded = false;
+	private float[][] error; // [topo index][time]
+
+	/**
+	 * @param nodes topo sorted nodes from Plan.buildDBN
+	 * @param numberofsamples particles per time step of every replicate
+	 * @param replicates independent scramblings, at least 2 to estimate the error
+	 */
+	public QuasiMonteCarlo(Node[] nodes, int numberofsamples, int replicates)
+	{
+		if(replicates < 1) throw new IllegalArgumentException(replicates+" replicates");
+		this.nodes = nodes;
+		this.number = numberofsamples;
+		this.replicates = replicates;
+	}
+
+	/**
+	 * Runs every replicate as a ParticleFilter instead of a Prediction.
+	 */
+	public void setParticleFilter(boolean filter)
+	{
+		this.filter = filter;
+	}
+
+	/**
+	 * Samples the Prediction replicates in blocks, see Prediction.setBlockSampling.
+	 */
+	public void setBlockSampling(boolean blocks)
+	{
+		this.blocks = blocks;
+	}
+
+	/**
+	 * Fixes the scramblings, so that runs are reproducible.
+	 */
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+		this.seeded = true;
+	}
+
+	/**
+	 * Returns the standard error of every marginal of the last run, indexed by [topo index][time], NaN
+	 * with a single replicate.
+	 */
+	public float[][] getStandardError()
+	{
+		return error;
+	}
+
+	public void run()
+	{
+		if(nodes.length < 1) return;
+		int steps = nodes[0].getSteps();
+		double[][] sums = new double[nodes.length][steps];
+		double[][] squares = new double[nodes.length][steps];
+		ScrambledHalton master = seeded ? new ScrambledHalton(seed) : new ScrambledHalton();
+		for(int r = 0; r < replicates; r++)
+		{
+			if(filter)
+			{
+				ParticleFilter sampler = new ParticleFilter(nodes, number);
+				sampler.setRandom(master.split());
+				sampler.run();
+			}else{
+				Prediction sampler = new Prediction(nodes, number);
+				sampler.setRandom(master.split());
+				sampler.setBlockSampling(blocks);
+				sampler.run();
+			}
+			float[] marginal;
+			for(int n = 0; n < nodes.length; n++)
+			{
+				marginal = nodes[n].getMarginal();
+				for(int t = 0; t < steps; t++)
+				{
+					sums[n][t] += marginal[t];
+					squares[n][t] += (double)marginal[t] * marginal[t];
+				}
+			}
+		}
+		error = new float[nodes.length][steps];
+		double mean;
+		double variance;
+		for(int n = 0; n < nodes.length; n++)
+		{
+			for(int t = 0; t < steps; t++)
+			{
+				mean = sums[n][t] / replicates;
+				nodes[n].setMarginal(t, (float)mean);
+				if(replicates < 2)
+				{
+					error[n][t] = Float.NaN;
+					continue;
+				}
+				variance = Math.max(0, (squares[n][t] - replicates * mean * mean) / (replicates - 1));
+				error[n][t] = (float)Math.sqrt(variance / replicates);
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Arrays;
+
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Computes the marginals of a few target events only.  A node can influence the targets only if it is
+ * an ancestor of a target or of an observed node (observations weight the particles), so everything
+ * else is pruned and Prediction or ParticleFilter runs on the ancestral closure.  The marginals of the
+ * targets follow the same distribution as in a full run; nodes that were pruned get NaN marginals.
+ */
+public class QueryInference implements Sampler {
+
+	private final Node[] nodes;
+	private final int number;
+	private final int[] targets; // topo indices
+	private boolean filter = false;
+	private int workers = 1;
+	private long seed;
+	private boolean seeded = false;
+	private int[] relevant; // topo indices sampled by the last run
+
+	/**
+	 * @param nodes topo sorted nodes from Plan.buildDBN
+	 * @param numberofsamples particles per time step
+	 * @param targets event ids whose marginals are needed
+	 */
+	public QueryInference(Node[] nodes, int numberofsamples, int... targets)
+	{
+		this.nodes = nodes;
+		this.number = numberofsamples;
+		this.targets = Tolerance.query(nodes, targets);
+	}
+
+	/**
+	 * Runs a ParticleFilter on the reduced network instead of a Prediction.
+	 */
+	public void setParticleFilter(boolean filter)
+	{
+		this.filter = filter;
+	}
+
+	/**
+	 * Seeds the particle filter and splits it over workers, see ParticleFilter.
+	 */
+	public void setParallel(int workers, long seed)
+	{
+		this.workers = workers;
+		this.seed = seed;
+		this.seeded = true;
+	}
+
+	/**
+	 * Returns the topo indices of the nodes the last run sampled, in order.
+	 */
+	public int[] getRelevant()
+	{
+		return relevant;
+	}
+
+	public void run()
+	{
+		relevant = relevant(nodes, targets);
+		int[] renumbered = new int[nodes.length];
+		Arrays.fill(renumbered, -1);
+		for(int i = 0; i < relevant.length; i++)
+		{
+			renumbered[relevant[i]] = i;
+		}
+		// ancestors come first in topo order, so the reduced array stays topo sorted
+		Node[] reduced = new Node[relevant.length];
+		int[] causes;
+		int[] topocauses;
+		for(int i = 0; i < relevant.length; i++)
+		{
+			causes = nodes[relevant[i]].getCauses();
+			topocauses = new int[causes.length];
+			for(int c = 0; c < causes.length; c++)
+			{
+				topocauses[c] = renumbered[causes[c]];
+			}
+			reduced[i] = nodes[relevant[i]].renumber(topocauses);
+		}
+		Sampler sampler;
+		if(filter)
+		{
+			sampler = seeded ? new ParticleFilter(reduced, number, workers, seed) : new ParticleFilter(reduced, number);
+		}else{
+			sampler = new Prediction(reduced, number);
+		}
+		sampler.run();
+		for(int n = 0; n < nodes.length; n++)
+		{
+			float[] marginal = (renumbered[n] >= 0) ? reduced[renumbered[n]].getMarginal() : null;
+			for(int t = 0; t < nodes[n].getSteps(); t++)
+			{
+				nodes[n].setMarginal(t, (marginal != null) ? marginal[t] : Float.NaN);
+			}
+		}
+	}
+
+	/**
+	 * Returns the ancestral closure of the targets and of every node observed within the horizon, in topo
+	 * order.  Causes always precede their effects, so one backward sweep collects it in O(V + E).
+	 */
+	static int[] relevant(Node[] nodes, int[] targets)
+	{
+		boolean[] keep = new boolean[nodes.length];
+		for(int target : targets)
+		{
+			keep[target] = true;
+		}
+		int[] last = new EvidenceIndex(nodes).lastObserved((nodes.length > 0) ? nodes[0].getSteps() : 0);
+		for(int n = 0; n < nodes.length; n++)
+		{
+			if(last[n] >= 0) keep[n] = true;
+		}
+		int count = 0;
+		for(int n = nodes.length - 1; n >= 0; n--)
+		{
+			if(!keep[n]) continue;
+			count++;
+			for(int cause : nodes[n].getCauses())
+			{
+				keep[cause] = true;
+			}
+		}
+		int[] relevant = new int[count];
+		int i = 0;
+		for(int n = 0; n < nodes.length; n++)
+		{
+			if(keep[n]) relevant[i++] = n;
+		}
+		return relevant;
+	}
+}
@@ -0,0 +1,113 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Random;
+
+/**
+ * Base of the generators the samplers draw from.  It is a java.util.Random so it can go wherever one is
+ * expected (e.g. a Resampler), but the state lives in the subclass as plain fields: a draw never touches
+ * Random's atomic seed.  Subclasses provide nextLong(), split() and copy(); the other draws are built on
+ * nextLong().  Instances are not thread safe, every worker gets its own split.
+ * <p>
+ * Counter-based generators can also compute the draws of a particle directly from (particle, draw,
+ * time), independent of the order particles are visited in, see isCounterBased().
+ */
+public abstract class RandomSource extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public abstract long nextLong();
+
+	/**
+	 * Returns a new generator whose stream does not overlap with this one (for practical purposes),
+	 * advancing this generator.
+	 */
+	public abstract RandomSource split();
+
+	/**
+	 * Returns a generator in exactly this state, it will produce the same draws.
+	 */
+	public abstract RandomSource copy();
+
+	@Override
+	protected int next(int bits)
+	{
+		return (int)(nextLong() >>> (64 - bits));
+	}
+
+	@Override
+	public int nextInt()
+	{
+		return (int)(nextLong() >>> 32);
+	}
+
+	@Override
+	public float nextFloat()
+	{
+		return (nextLong() >>> 40) * 0x1.0p-24f;
+	}
+
+	@Override
+	public double nextDouble()
+	{
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	@Override
+	public boolean nextBoolean()
+	{
+		return nextLong() < 0;
+	}
+
+	/**
+	 * Fills out[from, to) with uniform floats in [0, 1).
+	 */
+	public void fill(float[] out, int from, int to)
+	{
+		for(int i = from; i < to; i++)
+		{
+			out[i] = nextFloat();
+		}
+	}
+
+	public void fill(float[] out)
+	{
+		fill(out, 0, out.length);
+	}
+
+	/**
+	 * True if position() and uniform() address draws directly.
+	 */
+	public boolean isCounterBased()
+	{
+		return false;
+	}
+
+	/**
+	 * Moves a counter-based generator to the first draw of a particle at a time step, nextFloat() then
+	 * returns uniform(particle, 0, time), uniform(particle, 1, time) and so on.  Other generators ignore it.
+	 */
+	public void position(int particle, int time)
+	{
+	}
+
+	/**
+	 * Returns draw number draw of a particle at a time step, only counter-based generators support it.
+	 */
+	public float uniform(int particle, int draw, int time)
+	{
+		throw new UnsupportedOperationException(getClass().getSimpleName()+" is not counter based");
+	}
+
+	/**
+	 * Writes draw number draw of particles [first, first + count) at a time step to out[0, count), only
+	 * counter-based generators support it.
+	 */
+	public void uniforms(int first, int count, int draw, int time, float[] out)
+	{
+		for(int i = 0; i < count; i++)
+		{
+			out[i] = uniform(first + i, draw, time);
+		}
+	}
+}
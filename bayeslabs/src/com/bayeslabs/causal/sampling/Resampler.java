@@ -0,0 +1,19 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Random;
+
+/**
+ * Strategy used by ParticleFilter to draw a new population from weighted particles.
+ */
+public interface Resampler {
+
+	/**
+	 * Selects particles with probability proportional to their weights.
+	 * @param weights particle weights, they do not have to sum to one but must not all be zero
+	 * @param count number of weighted particles, weights[0..count)
+	 * @param R random source
+	 * @param selected receives the indices of the selected particles, one per entry
+	 */
+	public void resample(float[] weights, int count, Random R, int[] selected);
+
+}
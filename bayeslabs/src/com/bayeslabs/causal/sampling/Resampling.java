@@ -0,0 +1,129 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Random;
+
+/**
+ * The standard resampling schemes.  Each one makes a single pass over the cumulative weights, so a
+ * resample costs O(N) no matter how small or uneven the weights are.
+ */
+public enum Resampling implements Resampler {
+
+	/**
+	 * Independent draws from the weights.  The sorted uniforms are generated directly as order
+	 * statistics (from the largest down), which avoids both a sort and a binary search per draw.
+	 */
+	MULTINOMIAL {
+		@Override
+		public void resample(float[] weights, int count, Random R, int[] selected)
+		{
+			multinomial(weights, count, total(weights, count), R, selected, 0);
+		}
+	},
+	/**
+	 * One uniform offset shared by N evenly spaced positions, lowest variance of the four.
+	 */
+	SYSTEMATIC {
+		@Override
+		public void resample(float[] weights, int count, Random R, int[] selected)
+		{
+			stratify(weights, count, R, selected, false);
+		}
+	},
+	/**
+	 * One uniform per stratum of width 1/N.
+	 */
+	STRATIFIED {
+		@Override
+		public void resample(float[] weights, int count, Random R, int[] selected)
+		{
+			stratify(weights, count, R, selected, true);
+		}
+	},
+	/**
+	 * Keeps floor(N * w) copies of every particle and draws the remainder multinomially from the residuals.
+	 */
+	RESIDUAL {
+		@Override
+		public void resample(float[] weights, int count, Random R, int[] selected)
+		{
+			int n = selected.length;
+			double total = total(weights, count);
+			float[] residual = new float[count];
+			int k = 0;
+			double expected;
+			int copies;
+			for(int p = 0; p < count; p++)
+			{
+				expected = n * (weights[p] / total);
+				copies = (int)expected;
+				for(int c = 0; c < copies && k < n; c++)
+				{
+					selected[k++] = p;
+				}
+				residual[p] = (float)(expected - copies);
+			}
+			if(k < n)
+			{
+				multinomial(residual, count, total(residual, count), R, selected, k);
+			}
+		}
+	};
+
+	private static double total(float[] weights, int count)
+	{
+		double total = 0;
+		for(int p = 0; p < count; p++)
+		{
+			total += weights[p];
+		}
+		return total;
+	}
+
+	/**
+	 * Fills selected[from..] with multinomial draws.  The largest of m uniforms is U^(1/m), so walking
+	 * down from the top produces the sorted draws one at a time and the cumulative weights are merged
+	 * against them in one pass.
+	 */
+	private static void multinomial(float[] weights, int count, double total, Random R, int[] selected, int from)
+	{
+		double u = 1.0;
+		int particle = count - 1;
+		double cumulative = total; // sum of weights[0..particle]
+		double target;
+		for(int i = selected.length - 1; i >= from; i--)
+		{
+			u *= Math.pow(R.nextDouble(), 1.0 / (i - from + 1));
+			target = u * total;
+			while(particle > 0 && cumulative - weights[particle] > target)
+			{
+				cumulative -= weights[particle];
+				particle--;
+			}
+			selected[i] = particle;
+		}
+	}
+
+	/**
+	 * Systematic (one shared offset) or stratified (an offset per stratum) selection.
+	 */
+	private static void stratify(float[] weights, int count, Random R, int[] selected, boolean perstratum)
+	{
+		int n = selected.length;
+		double step = total(weights, count) / n;
+		double offset = R.nextDouble();
+		int particle = 0;
+		double cumulative = weights[0]; // sum of weights[0..particle]
+		double target;
+		for(int i = 0; i < n; i++)
+		{
+			if(perstratum && i > 0) offset = R.nextDouble();
+			target = (i + offset) * step;
+			while(target >= cumulative && particle < count - 1)
+			{
+				particle++;
+				cumulative += weights[particle];
+			}
+			selected[i] = particle;
+		}
+	}
+}
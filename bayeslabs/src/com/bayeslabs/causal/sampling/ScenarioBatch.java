@@ -0,0 +1,260 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.bayeslabs.causal.model.CompiledNetwork;
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Evaluates many what-if scenarios against one compiled network.  A scenario is the evidence of the
+ * nodes with an overlay of observations added, replaced or removed; it is compiled into its own
+ * EvidenceIndex while the CPTs and topology of the network are shared, so nothing is copied or rebuilt
+ * per scenario.  Every scenario runs a ParticleFilter with the same random source (common random
+ * numbers): scenarios that differ in a few observations draw the same particles wherever the evidence
+ * does not pull them apart, so differences between scenarios are estimated far more precisely than by
+ * independent runs.
+ * <p>
+ * With common random numbers a scenario filters exactly like the base evidence up to the first step
+ * its evidence differs at.  The base evidence is therefore filtered once with a checkpoint after every
+ * step and each scenario resumes from the checkpoint before its first difference, so a what-if at time
+ * t costs only the steps from t on.  The results are the same as separate runs with the same seed.  The
+ * scenarios are filtered in parallel on a fork-join pool and their marginals are kept per scenario
+ * instead of being written to the nodes.
+ */
+public class ScenarioBatch {
+
+	private final CompiledNetwork network;
+	private final int number;
+	private final EvidenceIndex base; // observations of the nodes
+	private final List<EvidenceIndex> scenarios = new ArrayList<EvidenceIndex>();
+	private final List<Integer> differences = new ArrayList<Integer>(); // first time step each scenario differs from base at
+	private final HashMap<Integer,Integer> topo = new HashMap<Integer,Integer>(); // <Event ID,TOPO index>
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private RandomSource random;
+	private long seed;
+	private boolean raoblackwell = false;
+	private float[][][] marginals; // [scenario][topo index][time] of the last run
+
+	/**
+	 * @param nodes topo sorted nodes from Plan.buildDBN, their observations are the base evidence
+	 * @param numberofsamples particles per time step of every scenario
+	 */
+	public ScenarioBatch(Node[] nodes, int numberofsamples)
+	{
+		this(new CompiledNetwork(nodes), numberofsamples);
+	}
+
+	/**
+	 * Scenarios over a compiled network, see ScenarioBatch(Node[], int).
+	 */
+	public ScenarioBatch(CompiledNetwork network, int numberofsamples)
+	{
+		this.network = network;
+		this.number = numberofsamples;
+		Node[] nodes = network.getNodes();
+		this.base = new EvidenceIndex(nodes);
+		for(int n = 0; n < nodes.length; n++)
+		{
+			topo.put(nodes[n].getId(), n);
+		}
+		this.seed = new SplitRandom().nextLong();
+	}
+
+	/**
+	 * Sets the number of scenarios filtered at the same time, one thread each.
+	 */
+	public void setThreads(int threads)
+	{
+		if(threads < 1) throw new IllegalArgumentException("threads must be at least 1: "+threads);
+		this.threads = threads;
+	}
+
+	/**
+	 * Seeds the random numbers common to all scenarios, so that runs are reproducible.
+	 */
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+		this.random = null;
+	}
+
+	/**
+	 * Draws the common random numbers from a copy of random instead of a seeded SplitRandom.  A
+	 * counter-based generator (Philox) gives every particle the same draws in every scenario even where
+	 * resampling picks different ancestors.
+	 */
+	public void setRandom(RandomSource random)
+	{
+		this.random = random;
+	}
+
+	/**
+	 * Uses the Rao-Blackwellised estimator of ParticleFilter in every scenario.
+	 */
+	public void setRaoBlackwell(boolean raoblackwell)
+	{
+		this.raoblackwell = raoblackwell;
+	}
+
+	/**
+	 * Adds a scenario: the evidence of the nodes with observation k set to values[k] for event
+	 * nodeIds[k] at time times[k], or removed where the value is NaN.
+	 * @return the index of the scenario
+	 */
+	public int addScenario(int[] nodeIds, int[] times, float[] values)
+	{
+		if(nodeIds.length != times.length || nodeIds.length != values.length)
+			throw new IllegalArgumentException(nodeIds.length+" nodes, "+times.length+" times and "+values.length+" values");
+		EvidenceIndex evidence = base.copy();
+		for(int k = 0; k < nodeIds.length; k++)
+		{
+			if(Float.isNaN(values[k]))
+			{
+				evidence.clear(this.lookup(nodeIds[k]), times[k]);
+			}else{
+				evidence.observe(this.lookup(nodeIds[k]), times[k], values[k]);
+			}
+		}
+		return this.addScenario(evidence);
+	}
+
+	/**
+	 * Adds a scenario with evidence compiled elsewhere, which replaces the observations of the nodes.
+	 * @return the index of the scenario
+	 */
+	public int addScenario(EvidenceIndex evidence)
+	{
+		if(evidence.size() != network.size()) throw new IllegalArgumentException("evidence for "+evidence.size()+" nodes, network has "+network.size());
+		scenarios.add(evidence);
+		differences.add(evidence.firstDifference(base));
+		return scenarios.size() - 1;
+	}
+
+	/**
+	 * Returns the number of scenarios.
+	 */
+	public int size()
+	{
+		return scenarios.size();
+	}
+
+	/**
+	 * Returns the marginals of a scenario from the last run, indexed by [topo index][time].
+	 */
+	public float[][] getMarginals(int scenario)
+	{
+		return marginals[scenario];
+	}
+
+	/**
+	 * Filters every scenario.
+	 */
+	public void run()
+	{
+		int steps = (network.size() > 0) ? network.getNodes()[0].getSteps() : 0;
+		float[][][] results = new float[scenarios.size()][network.size()][steps];
+		if(network.size() > 0 && !scenarios.isEmpty())
+		{
+			boolean shared = false;
+			for(int difference : differences)
+			{
+				shared |= difference > 0;
+			}
+			ParticleFilter reference = null;
+			float[][] prefix = null;
+			if(shared)
+			{
+				// the base evidence, checkpointed after every step
+				prefix = new float[network.size()][steps];
+				reference = this.filter(base, prefix);
+				reference.setCheckpointInterval(1);
+				reference.run();
+			}
+			ForkJoinPool pool = new ForkJoinPool(Math.min(threads, scenarios.size()));
+			try{
+				pool.invoke(new Batch(reference, prefix, results, 0, scenarios.size()));
+			}finally{
+				pool.shutdown();
+			}
+		}
+		marginals = results;
+	}
+
+	/**
+	 * Filters one scenario into its marginals, from the reference checkpoint before its first
+	 * difference when there is one.
+	 */
+	private void filter(int scenario, ParticleFilter reference, float[][] prefix, float[][] marginals)
+	{
+		int steps = (marginals.length > 0) ? marginals[0].length : 0;
+		int difference = Math.min(differences.get(scenario), steps);
+		if(reference == null || difference == 0)
+		{
+			this.filter(scenarios.get(scenario), marginals).run();
+			return;
+		}
+		for(int n = 0; n < marginals.length; n++)
+		{
+			System.arraycopy(prefix[n], 0, marginals[n], 0, difference);
+		}
+		if(difference < steps) this.filter(scenarios.get(scenario), marginals).resume(reference, difference - 1);
+	}
+
+	/**
+	 * Returns a filter of the evidence that records into marginals.
+	 */
+	private ParticleFilter filter(EvidenceIndex evidence, float[][] marginals)
+	{
+		ParticleFilter filter = new ParticleFilter(network, number, 1, seed);
+		if(random != null) filter.setRandom(random);
+		filter.setRaoBlackwell(raoblackwell);
+		filter.setEvidence(evidence);
+		filter.record = marginals;
+		return filter;
+	}
+
+	private int lookup(int nodeId)
+	{
+		Integer n = topo.get(nodeId);
+		if(n == null) throw new IllegalArgumentException("unknown node "+nodeId);
+		return n;
+	}
+
+	/**
+	 * Scenarios [from, to), one task each.
+	 */
+	private final class Batch extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final ParticleFilter reference;
+		private final float[][] prefix;
+		private final float[][][] results;
+		private final int from;
+		private final int to;
+
+		Batch(ParticleFilter reference, float[][] prefix, float[][][] results, int from, int to)
+		{
+			this.reference = reference;
+			this.prefix = prefix;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from > 1)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new Batch(reference, prefix, results, from, middle), new Batch(reference, prefix, results, middle, to));
+				return;
+			}
+			filter(from, reference, prefix, results[from]);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.Arrays;
+
+/**
+ * Randomized quasi-Monte Carlo draws: particle i at a time step is the i-th point of a Halton sequence
+ * with one dimension per draw, i.e. per sampled topo sorted node.  Dimension d is the radical inverse in
+ * the d-th prime base whose digits are scrambled by random linear permutations (digit a becomes
+ * (m a + s) mod b, a fresh m and s per dimension, digit, time step and seed).  The points of a run cover
+ * the unit cube far more evenly than pseudo-random ones, while every single draw is still uniform, so
+ * estimates stay unbiased and generators with different seeds (see split()) give independent replicates
+ * from which the error can be estimated, see QuasiMonteCarlo.
+ * <p>
+ * Only the draws addressed by a particle are quasi-random: uniform(), uniforms() and nextFloat() after
+ * position().  nextLong() and the draws built on it (nextDouble() for resampling, nextInt()) come from a
+ * Philox stream keyed by the same seed.
+ */
+public class ScrambledHalton extends RandomSource {
+
+	private static final long serialVersionUID = 1L;
+	private static final long GAMMA = 0x9e3779b97f4a7c15L;
+	private static final float BELOW_ONE = 0x1.fffffep-1f;
+
+	private final long seed;
+	private final Philox stream;
+	private int particle;
+	private int time;
+	private int draw;
+	private boolean positioned = false;
+
+	private int[] primes = new int[0]; // base of every dimension
+	private int[][] multipliers = new int[0][]; // per dimension and digit, scrambles of scrambledat
+	private int[][] shifts = new int[0][];
+	private long[][] tails = new long[0][]; // per dimension and digit, the scrambled digits from there on when they are all zero
+	private long[][] powers = new long[0][]; // base^(digits - k)
+	private double[] resolution = new double[0]; // base^-digits of every dimension
+	private int[] scrambledat = new int[0]; // time step the scrambles of a dimension belong to
+
+	/**
+	 * Creates a generator with a seed from a fresh SplitRandom.
+	 */
+	public ScrambledHalton()
+	{
+		this(new SplitRandom().nextLong());
+	}
+
+	/**
+	 * @param seed selects the scrambling, generators with different seeds are independent replicates
+	 */
+	public ScrambledHalton(long seed)
+	{
+		this.seed = seed;
+		this.stream = new Philox(seed);
+	}
+
+	private ScrambledHalton(ScrambledHalton source)
+	{
+		this.seed = source.seed;
+		this.stream = source.stream.copy();
+		this.particle = source.particle;
+		this.time = source.time;
+		this.draw = source.draw;
+		this.positioned = source.positioned;
+	}
+
+	@Override
+	public boolean isCounterBased()
+	{
+		return true;
+	}
+
+	@Override
+	public void position(int particle, int time)
+	{
+		this.particle = particle;
+		this.time = time;
+		this.draw = 0;
+		this.positioned = true;
+	}
+
+	@Override
+	public float uniform(int particle, int draw, int time)
+	{
+		return coordinate(particle, this.scramble(draw, time));
+	}
+
+	@Override
+	public void uniforms(int first, int count, int draw, int time, float[] out)
+	{
+		int dimension = this.scramble(draw, time);
+		for(int i = 0; i < count; i++)
+		{
+			out[i] = coordinate(first + i, dimension);
+		}
+	}
+
+	@Override
+	public float nextFloat()
+	{
+		if(!positioned) return stream.nextFloat();
+		return coordinate(particle, this.scramble(draw++, time));
+	}
+
+	@Override
+	public long nextLong()
+	{
+		return stream.nextLong();
+	}
+
+	/**
+	 * Returns an independently scrambled generator, advancing this one.
+	 */
+	@Override
+	public ScrambledHalton split()
+	{
+		return new ScrambledHalton(stream.nextLong());
+	}
+
+	@Override
+	public ScrambledHalton copy()
+	{
+		return new ScrambledHalton(this);
+	}
+
+	/**
+	 * Scrambled radical inverse of index in the base of a dimension, truncated to float precision.
+	 */
+	private float coordinate(int index, int dimension)
+	{
+		int base = primes[dimension];
+		int[] multiplier = multipliers[dimension];
+		int[] shift = shifts[dimension];
+		// the scrambled digits, most significant first, form an integer below base^digits
+		long scaled = 0;
+		int rest = index;
+		int digit;
+		int k = 0;
+		for(; k < multiplier.length && rest != 0; k++)
+		{
+			digit = rest % base;
+			rest /= base;
+			scaled = scaled * base + (int)(((long)multiplier[k] * digit + shift[k]) % base);
+		}
+		if(k < multiplier.length) scaled = scaled * powers[dimension][k] + tails[dimension][k];
+		float u = (float)(scaled * resolution[dimension]);
+		return (u < 1f) ? u : BELOW_ONE;
+	}
+
+	/**
+	 * Makes the scrambles of a dimension current for a time step.
+	 * @return the dimension
+	 */
+	private int scramble(int dimension, int time)
+	{
+		if(dimension >= primes.length) this.grow(dimension + 1);
+		if(scrambledat[dimension] == time && multipliers[dimension] != null) return dimension;
+		int base = primes[dimension];
+		int[] multiplier = multipliers[dimension];
+		if(multiplier == null)
+		{
+			// enough digits to resolve 2^-24, the precision of a float draw
+			int digits = 1;
+			long reach = base;
+			for(; reach < (1L << 24); reach *= base)
+			{
+				digits++;
+			}
+			multiplier = multipliers[dimension] = new int[digits];
+			shifts[dimension] = new int[digits];
+			tails[dimension] = new long[digits];
+			powers[dimension] = new long[digits];
+			resolution[dimension] = 1.0 / reach;
+		}
+		int[] shift = shifts[dimension];
+		long hash = SplitRandom.mix64(seed ^ SplitRandom.mix64(((long)time << 32) | dimension));
+		for(int k = 0; k < multiplier.length; k++)
+		{
+			hash = SplitRandom.mix64(hash + GAMMA);
+			multiplier[k] = 1 + (int)((hash >>> 1) % (base - 1));
+			shift[k] = (int)((hash >>> 33) % base);
+		}
+		// a zero digit scrambles to its shift, so the high digits of small indices are known in advance
+		long[] tail = tails[dimension];
+		long[] power = powers[dimension];
+		long value = 0;
+		long scale = 1;
+		for(int k = multiplier.length - 1; k >= 0; k--)
+		{
+			value += shift[k] * scale;
+			scale *= base;
+			tail[k] = value;
+			power[k] = scale;
+		}
+		scrambledat[dimension] = time;
+		return dimension;
+	}
+
+	/**
+	 * Extends the dimensions to at least count, doubling to keep the sieve amortized.
+	 */
+	private void grow(int count)
+	{
+		int dimensions = Math.max(count, primes.length << 1);
+		primes = primes(dimensions);
+		multipliers = Arrays.copyOf(multipliers, dimensions);
+		shifts = Arrays.copyOf(shifts, dimensions);
+		tails = Arrays.copyOf(tails, dimensions);
+		powers = Arrays.copyOf(powers, dimensions);
+		resolution = Arrays.copyOf(resolution, dimensions);
+		scrambledat = Arrays.copyOf(scrambledat, dimensions);
+	}
+
+	/**
+	 * Returns the first count primes (sieve of Eratosthenes).
+	 */
+	static int[] primes(int count)
+	{
+		// the n-th prime is below n (ln n + ln ln n) for n >= 6
+		int limit = (count < 6) ? 15 : (int)(count * (Math.log(count) + Math.log(Math.log(count)))) + 1;
+		boolean[] composite = new boolean[limit + 1];
+		int[] primes = new int[count];
+		int found = 0;
+		for(int n = 2; found < count; n++)
+		{
+			if(composite[n]) continue;
+			primes[found++] = n;
+			for(long multiple = (long)n * n; multiple <= limit; multiple += n)
+			{
+				composite[(int)multiple] = true;
+			}
+		}
+		return primes;
+	}
+}
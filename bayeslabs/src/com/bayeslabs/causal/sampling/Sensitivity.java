@@ -0,0 +1,306 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.bayeslabs.causal.model.CompiledNetwork;
+import com.bayeslabs.causal.model.ElicitationMap;
+import com.bayeslabs.causal.model.Node;
+import com.bayeslabs.causal.model.Plan;
+
+/**
+ * Ranks the elicited probabilities of a plan by how much they move the marginals of a few target events
+ * at one time step.  The derivative of a target marginal with respect to an elicitation is estimated by
+ * a central difference: the network is filtered with the elicitation raised and lowered by a small step,
+ * both runs drawing the same random numbers (a counter-based Philox stream), so the noise of the two
+ * estimates largely cancels and a small step still gives a usable difference.
+ * <p>
+ * Only elicitations of ancestors of the targets or of observed nodes can change the targets, every other
+ * one has a derivative of exactly 0 and is left out.  The runs are made on that ancestral closure (see
+ * QueryInference), compiled once; each run only swaps in the recompiled CPT of its parameter's node, and
+ * the parameters are spread over a fork-join pool.
+ */
+public class Sensitivity {
+
+	private final Plan plan;
+	private final Node[] nodes;
+	private final int number;
+	private final int[] targets; // topo indices
+	private int time;
+	private float step = 0.01f;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private RandomSource random;
+	private long seed;
+	private List<Parameter> ranking;
+
+	/**
+	 * @param plan plan the nodes were built from, for the elicitations
+	 * @param nodes topo sorted nodes from plan.buildDBN
+	 * @param numberofsamples particles per time step of every run
+	 * @param targets event ids whose marginals are differentiated
+	 */
+	public Sensitivity(Plan plan, Node[] nodes, int numberofsamples, int... targets)
+	{
+		this.plan = plan;
+		this.nodes = nodes;
+		this.number = numberofsamples;
+		this.targets = Tolerance.query(nodes, targets);
+		this.time = (nodes.length > 0) ? nodes[0].getSteps() - 1 : 0;
+		this.seed = new SplitRandom().nextLong();
+	}
+
+	/**
+	 * Sets the time step of the target marginals, the last one by default.
+	 */
+	public void setTime(int time)
+	{
+		if(nodes.length > 0 && (time < 0 || time >= nodes[0].getSteps())) throw new IllegalArgumentException("time "+time+" is outside the horizon");
+		this.time = time;
+	}
+
+	/**
+	 * Sets how far an elicitation is moved up and down, 0.01 by default.  Near 0 or 1 the step is cut at
+	 * the bound and the difference becomes one-sided.
+	 */
+	public void setStep(float step)
+	{
+		if(!(step > 0f && step <= 0.5f)) throw new IllegalArgumentException("step "+step+" is not in (0, 0.5]");
+		this.step = step;
+	}
+
+	/**
+	 * Sets the number of parameters evaluated at the same time, one thread each.
+	 */
+	public void setThreads(int threads)
+	{
+		if(threads < 1) throw new IllegalArgumentException("threads must be at least 1: "+threads);
+		this.threads = threads;
+	}
+
+	/**
+	 * Seeds the random numbers common to all runs, so that results are reproducible.
+	 */
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+		this.random = null;
+	}
+
+	/**
+	 * Draws the common random numbers from a copy of random instead of a seeded Philox.
+	 */
+	public void setRandom(RandomSource random)
+	{
+		this.random = random;
+	}
+
+	/**
+	 * Returns the parameters of the last run, largest absolute derivative (over the targets) first.
+	 */
+	public List<Parameter> getRanking()
+	{
+		return ranking;
+	}
+
+	/**
+	 * Estimates the derivatives of all parameters that can influence the targets.
+	 */
+	public void run()
+	{
+		int[] relevant = QueryInference.relevant(nodes, targets);
+		int[] renumbered = new int[nodes.length];
+		Arrays.fill(renumbered, -1);
+		for(int i = 0; i < relevant.length; i++)
+		{
+			renumbered[relevant[i]] = i;
+		}
+		Node[] reduced = new Node[relevant.length];
+		int[] causes;
+		int[] topocauses;
+		for(int i = 0; i < relevant.length; i++)
+		{
+			causes = nodes[relevant[i]].getCauses();
+			topocauses = new int[causes.length];
+			for(int c = 0; c < causes.length; c++)
+			{
+				topocauses[c] = renumbered[causes[c]];
+			}
+			reduced[i] = nodes[relevant[i]].renumber(topocauses);
+		}
+		int[] rows = new int[targets.length];
+		for(int t = 0; t < targets.length; t++)
+		{
+			rows[t] = renumbered[targets[t]];
+		}
+		List<Parameter> parameters = new ArrayList<Parameter>();
+		for(int i = 0; i < reduced.length; i++)
+		{
+			ElicitationMap elicited = plan.getEvent(reduced[i].getId()).getElicited();
+			for(int slot = 0; slot < elicited.size(); slot++)
+			{
+				parameters.add(new Parameter(reduced[i].getId(), i, elicited.keyAt(slot), elicited.valueAt(slot), targets.length));
+			}
+		}
+		if(!parameters.isEmpty())
+		{
+			EvidenceIndex evidence = new EvidenceIndex(reduced);
+			CompiledNetwork compiled = new CompiledNetwork(reduced); // each run only replaces its parameter's node
+			ForkJoinPool pool = new ForkJoinPool(Math.min(threads, parameters.size()));
+			try{
+				pool.invoke(new Batch(parameters, compiled, rows, evidence, 0, parameters.size()));
+			}finally{
+				pool.shutdown();
+			}
+		}
+		Collections.sort(parameters, new Comparator<Parameter>() {
+			@Override
+			public int compare(Parameter a, Parameter b)
+			{
+				return Double.compare(b.getMagnitude(), a.getMagnitude());
+			}
+		});
+		ranking = parameters;
+	}
+
+	/**
+	 * Filters the network with the parameter raised and lowered and stores the differences.
+	 */
+	private void differentiate(Parameter parameter, CompiledNetwork reduced, int[] rows, EvidenceIndex evidence)
+	{
+		float upper = Math.min(1f, parameter.value + step);
+		float lower = Math.max(0f, parameter.value - step);
+		float[][] raised = this.filter(parameter, upper, reduced, evidence);
+		float[][] lowered = this.filter(parameter, lower, reduced, evidence);
+		for(int t = 0; t < rows.length; t++)
+		{
+			parameter.derivatives[t] = (raised[rows[t]][time] - lowered[rows[t]][time]) / (upper - lower);
+		}
+	}
+
+	/**
+	 * Returns the marginals [reduced index][time] with the parameter set to value.
+	 */
+	private float[][] filter(Parameter parameter, float value, CompiledNetwork reduced, EvidenceIndex evidence)
+	{
+		Node[] nodes = reduced.getNodes();
+		ElicitationMap elicited = plan.getEvent(parameter.event).getElicited();
+		Node changed = nodes[parameter.node].reelicit(elicited, parameter.index, value);
+		float[][] marginals = new float[nodes.length][nodes[0].getSteps()];
+		ParticleFilter filter = new ParticleFilter(new CompiledNetwork(reduced, parameter.node, changed), number);
+		filter.setRandom((random != null) ? random : new Philox(seed));
+		filter.setEvidence(evidence);
+		filter.record = marginals;
+		filter.run();
+		return marginals;
+	}
+
+	/**
+	 * One elicitation and its estimated derivatives.
+	 */
+	public static final class Parameter
+	{
+		private final int event;
+		private final int node; // index in the reduced network
+		private final int index;
+		private final float value;
+		private final float[] derivatives;
+
+		Parameter(int event, int node, int index, float value, int targets)
+		{
+			this.event = event;
+			this.node = node;
+			this.index = index;
+			this.value = value;
+			this.derivatives = new float[targets];
+		}
+
+		/**
+		 * Returns the id of the event the elicitation belongs to.
+		 */
+		public int getEventId()
+		{
+			return event;
+		}
+
+		/**
+		 * Returns the Power Set index of the elicitation, 0 for the leak.
+		 */
+		public int getIndex()
+		{
+			return index;
+		}
+
+		public float getValue()
+		{
+			return value;
+		}
+
+		/**
+		 * Returns d marginal / d elicitation for a target, in the order the targets were given.
+		 */
+		public float getDerivative(int target)
+		{
+			return derivatives[target];
+		}
+
+		/**
+		 * Returns the largest absolute derivative over the targets.
+		 */
+		public float getMagnitude()
+		{
+			float magnitude = 0f;
+			for(float derivative : derivatives)
+			{
+				magnitude = Math.max(magnitude, Math.abs(derivative));
+			}
+			return magnitude;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "event "+event+" index "+index+" = "+value+": "+Arrays.toString(derivatives);
+		}
+	}
+
+	/**
+	 * Parameters [from, to), one task each.
+	 */
+	private final class Batch extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final List<Parameter> parameters;
+		private final CompiledNetwork reduced;
+		private final int[] rows;
+		private final EvidenceIndex evidence;
+		private final int from;
+		private final int to;
+
+		Batch(List<Parameter> parameters, CompiledNetwork reduced, int[] rows, EvidenceIndex evidence, int from, int to)
+		{
+			this.parameters = parameters;
+			this.reduced = reduced;
+			this.rows = rows;
+			this.evidence = evidence;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from > 1)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new Batch(parameters, reduced, rows, evidence, from, middle), new Batch(parameters, reduced, rows, evidence, middle, to));
+				return;
+			}
+			differentiate(parameters.get(from), reduced, rows, evidence);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SplitMix64 generator, the same algorithm as java.util.SplittableRandom.  The state is a plain long
+ * advanced by a constant, and split() hands out statistically independent streams for workers.
+ */
+public class SplitRandom extends RandomSource {
+
+	private static final long serialVersionUID = 1L;
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	private static final AtomicLong SEEDER = new AtomicLong(mix64(System.currentTimeMillis()) ^ mix64(System.nanoTime()));
+
+	private long state;
+	private final long gamma;
+
+	/**
+	 * Creates a generator with a seed that differs from any other unseeded one of this JVM.
+	 */
+	public SplitRandom()
+	{
+		this(mix64(SEEDER.getAndAdd(GOLDEN_GAMMA << 1)));
+	}
+
+	public SplitRandom(long seed)
+	{
+		this(seed, GOLDEN_GAMMA);
+	}
+
+	private SplitRandom(long seed, long gamma)
+	{
+		this.state = seed;
+		this.gamma = gamma;
+	}
+
+	@Override
+	public SplitRandom split()
+	{
+		return new SplitRandom(mix64(nextSeed()), mixGamma(nextSeed()));
+	}
+
+	@Override
+	public SplitRandom copy()
+	{
+		return new SplitRandom(state, gamma);
+	}
+
+	@Override
+	public long nextLong()
+	{
+		return mix64(nextSeed());
+	}
+
+	private long nextSeed()
+	{
+		return state += gamma;
+	}
+
+	static long mix64(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static long mixGamma(long z)
+	{
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L; // gamma must be odd
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+}
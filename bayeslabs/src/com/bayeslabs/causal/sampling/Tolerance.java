@@ -0,0 +1,84 @@
+package com.bayeslabs.causal.sampling;
+
+import java.util.HashMap;
+
+import com.bayeslabs.causal.model.Node;
+
+/**
+ * Stopping rule of the precision targeted sampling mode: a time step is done once the standard error
+ * of every query marginal is below the target.  The proportions are smoothed as (k+1)/(n+2) so that a
+ * node that has not been seen true yet does not pass with an error of zero.
+ */
+final class Tolerance {
+
+	private Tolerance()
+	{
+	}
+
+	/**
+	 * Unweighted particles: counts[node] of n particles were true.
+	 */
+	static boolean met(int[] counts, int n, int[] query, float error)
+	{
+		if(query == null)
+		{
+			for(int node = 0; node < counts.length; node++)
+			{
+				if(standardError(counts[node], n) > error) return false;
+			}
+		}else{
+			for(int node : query)
+			{
+				if(standardError(counts[node], n) > error) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Weighted particles: sums[node] of total weight was on true particles, ess is the effective sample size.
+	 */
+	static boolean met(double[] sums, double total, double ess, int[] query, float error)
+	{
+		if(!(total > 0)) return false;
+		if(query == null)
+		{
+			for(int node = 0; node < sums.length; node++)
+			{
+				if(standardError(sums[node] / total * ess, ess) > error) return false;
+			}
+		}else{
+			for(int node : query)
+			{
+				if(standardError(sums[node] / total * ess, ess) > error) return false;
+			}
+		}
+		return true;
+	}
+
+	private static double standardError(double k, double n)
+	{
+		double p = (k + 1) / (n + 2);
+		return Math.sqrt(p * (1 - p) / n);
+	}
+
+	/**
+	 * Maps event ids to topo sort indices.
+	 */
+	static int[] query(Node[] nodes, int[] ids)
+	{
+		HashMap<Integer,Integer> topo = new HashMap<Integer,Integer>();
+		for(int n = 0; n < nodes.length; n++)
+		{
+			topo.put(nodes[n].getId(), n);
+		}
+		int[] query = new int[ids.length];
+		for(int i = 0; i < ids.length; i++)
+		{
+			Integer n = topo.get(ids[i]);
+			if(n == null) throw new IllegalArgumentException("unknown node "+ids[i]);
+			query[i] = n;
+		}
+		return query;
+	}
+}
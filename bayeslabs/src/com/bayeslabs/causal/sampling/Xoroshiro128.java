@@ -0,0 +1,90 @@
+package com.bayeslabs.causal.sampling;
+
+/**
+ * xoroshiro128++ (Blackman and Vigna): 128 bits of state, period 2^128 - 1, and a few shifts, rotates
+ * and adds per draw.  split() hands out the current state and jumps this generator 2^64 draws ahead,
+ * so the streams of workers never overlap.
+ */
+public class Xoroshiro128 extends RandomSource {
+
+	private static final long serialVersionUID = 1L;
+	private static final long[] JUMP = {0x2bd7a6a6e99c2ddcL, 0x0992ccaf6a6fca05L};
+
+	private long s0;
+	private long s1;
+
+	/**
+	 * Creates a generator seeded from a fresh SplitRandom.
+	 */
+	public Xoroshiro128()
+	{
+		this(new SplitRandom().nextLong());
+	}
+
+	/**
+	 * Seeds the state with SplitMix64 as recommended by the authors, so similar seeds give unrelated
+	 * streams and the state is never all zero.
+	 */
+	public Xoroshiro128(long seed)
+	{
+		SplitRandom seeder = new SplitRandom(seed);
+		this.s0 = seeder.nextLong();
+		this.s1 = seeder.nextLong();
+		if((s0 | s1) == 0) s1 = 1;
+	}
+
+	private Xoroshiro128(long s0, long s1)
+	{
+		this.s0 = s0;
+		this.s1 = s1;
+	}
+
+	@Override
+	public long nextLong()
+	{
+		long a = s0;
+		long b = s1;
+		long result = Long.rotateLeft(a + b, 17) + a;
+		b ^= a;
+		s0 = Long.rotateLeft(a, 49) ^ b ^ (b << 21);
+		s1 = Long.rotateLeft(b, 28);
+		return result;
+	}
+
+	@Override
+	public Xoroshiro128 split()
+	{
+		Xoroshiro128 split = new Xoroshiro128(s0, s1);
+		this.jump();
+		return split;
+	}
+
+	@Override
+	public Xoroshiro128 copy()
+	{
+		return new Xoroshiro128(s0, s1);
+	}
+
+	/**
+	 * Advances the state by 2^64 draws.
+	 */
+	public void jump()
+	{
+		long a = 0;
+		long b = 0;
+		for(long word : JUMP)
+		{
+			for(int bit = 0; bit < 64; bit++)
+			{
+				if((word & (1L << bit)) != 0)
+				{
+					a ^= s0;
+					b ^= s1;
+				}
+				nextLong();
+			}
+		}
+		s0 = a;
+		s1 = b;
+	}
+}